@@ -0,0 +1,20 @@
+// **********************************************************************
+// An ASTVisitor is called for every node of a tree walked by
+// ASTnode.walk: enter before the kids of the node, leave after them.
+// Either method may be left out.
+// **********************************************************************
+interface ASTVisitor {
+    /**
+     * Called before the kids of node are walked.
+     * @return false to skip the kids of node
+     */
+    default boolean enter(ASTnode node) {
+        return true;
+    }
+
+    /**
+     * Called after the kids of node are walked (or skipped).
+     */
+    default void leave(ASTnode node) {
+    }
+}
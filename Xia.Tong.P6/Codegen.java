@@ -1,5 +1,7 @@
 import java.io.*;
-import java.util.HashMap;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // **********************************************************************
 // The Codegen class provides constants and operations useful for code
@@ -20,6 +22,13 @@ import java.util.HashMap;
 //     genLabel
 // and a method nextLabel to create and return a new label.
 //
+// Functions may be generated in parallel. Each thread can write into its
+// own buffer (startBuffering/stopBuffering) and labels are allocated in a
+// namespace of the function being generated (enterFunction/exitFunction),
+// so the output does not depend on the order the functions are done in.
+// Globals and string literals are collected as they are generated and
+// emitted at the end in one .data section by genDataSection.
+//
 // **********************************************************************
 
 public class Codegen {
@@ -45,11 +54,52 @@ public class Codegen {
     // for pretty printing generated code
     private static final int MAXLEN = 4;
 
+    // opcodes that leave the basic block
+    private static final Set<String> JUMPS = new HashSet<String>(Arrays.asList(
+        "b", "j", "jal", "jr", "beq", "bne", "blt", "bgt", "ble", "bge",
+        "beqz", "bnez"));
+
+
+    // for generating labels outside of functions
+    private static AtomicInteger currLabel = new AtomicInteger();
+
+    // output buffer of the current thread (null: write to p)
+    private static final ThreadLocal<Buffer> buffer = new ThreadLocal<Buffer>();
+
+    // label namespace of the function the current thread is generating
+    private static final ThreadLocal<LabelScope> scope =
+        new ThreadLocal<LabelScope>();
+
+    // string literal -> labels used for it, all functions together
+    private static ConcurrentHashMap<String, ConcurrentSkipListSet<String>>
+        stringPool =
+        new ConcurrentHashMap<>();
+
+    // label of each global -> its size in bytes
+    private static ConcurrentSkipListMap<String, Integer> globals =
+        new ConcurrentSkipListMap<>();
+
+    // buffers nest: stopBuffering returns to the enclosing one
+    private static class Buffer {
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        Buffer prev;
+
+        Buffer(Buffer prev) {
+            this.prev = prev;
+        }
+    }
+
+    private static class LabelScope {
+        String prefix;
+        int currLabel = 0;
+        //avoid repeating labels for string
+        HashMap<String, String> labelMap = new HashMap<>();
 
-    // for generating labels
-    private static int currLabel = 0;
-    //avoid repeating labels for string
-    private static HashMap<String, String> labelMap = new HashMap<>();
+        LabelScope(String prefix) {
+            this.prefix = prefix;
+        }
+    }
 
     // **********************************************************************
     // **********************************************************************
@@ -66,20 +116,20 @@ public class Codegen {
                                         String arg1, String arg2, String arg3) {
         int space = MAXLEN - opcode.length() + 2;
 
-        p.print("\t" + opcode);
+        out().print("\t" + opcode);
         if (arg1 != "") {
             for (int k = 1; k <= space; k++)
-                p.print(" ");
-            p.print(arg1);
+                out().print(" ");
+            out().print(arg1);
             if (arg2 != "") {
-                p.print(", " + arg2);
+                out().print(", " + arg2);
                 if (arg3 != "")
-                    p.print(", " + arg3);
+                    out().print(", " + arg3);
             }
         }
         if (comment != "")
-            p.print("\t\t#" + comment);
-        p.println();
+            out().print("\t\t#" + comment);
+        out().println();
     }
 
     public static void generateWithComment(String opcode, String comment,
@@ -103,8 +153,8 @@ public class Codegen {
     // **********************************************************************
     public static void generateDirectory(String dirName, String arg1)
     {
-        p.print("\t"+dirName+" "+arg1);
-        p.println();
+        out().print("\t"+dirName+" "+arg1);
+        out().println();
     }
 
     public static void generateDirectory(String dirName)
@@ -115,18 +165,22 @@ public class Codegen {
                                 String arg3) {
         int space = MAXLEN - opcode.length() + 2;
 
-        p.print("\t" + opcode);
+        if (JUMPS.contains(opcode)) {   // the values kept end with the block
+            LocalValues.clear();
+        }
+
+        out().print("\t" + opcode);
         if (arg1 != "") {
             for (int k = 1; k <= space; k++)
-                p.print(" ");
-            p.print(arg1);
+                out().print(" ");
+            out().print(arg1);
             if (arg2 != "") {
-                p.print(", " + arg2);
+                out().print(", " + arg2);
                 if (arg3 != "")
-                    p.print(", " + arg3);
+                    out().print(", " + arg3);
             }
         }
-        p.println();
+        out().println();
     }
 
     public static void generate(String opcode, String arg1, String arg2) {
@@ -150,10 +204,10 @@ public class Codegen {
                                 int arg3) {
         int space = MAXLEN - opcode.length() + 2;
 
-        p.print("\t" + opcode);
+        out().print("\t" + opcode);
         for (int k = 1; k <= space; k++)
-            p.print(" ");
-        p.println(arg1 + ", " + arg2 + ", " + arg3);
+            out().print(" ");
+        out().println(arg1 + ", " + arg2 + ", " + arg3);
     }
 
     // **********************************************************************
@@ -164,10 +218,10 @@ public class Codegen {
     public static void generate(String opcode, String arg1, int arg2) {
         int space = MAXLEN - opcode.length() + 2;
 
-        p.print("\t" + opcode);
+        out().print("\t" + opcode);
         for (int k = 1; k <= space; k++)
-            p.print(" ");
-        p.println(arg1 + ", " + arg2);
+            out().print(" ");
+        out().println(arg1 + ", " + arg2);
     }
 
     // **********************************************************************
@@ -181,13 +235,13 @@ public class Codegen {
                                        int arg3, String comment) {
         int space = MAXLEN - opcode.length() + 2;
 
-        p.print("\t" + opcode);
+        out().print("\t" + opcode);
         for (int k = 1; k <= space; k++)
-            p.print(" ");
-        p.print(arg1 + ", " + arg3 + "(" + arg2 + ")");
+            out().print(" ");
+        out().print(arg1 + ", " + arg3 + "(" + arg2 + ")");
         if (comment != "")
-            p.print("\t#" + comment);
-        p.println();
+            out().print("\t#" + comment);
+        out().println();
     }
 
     public static void generateIndexed(String opcode, String arg1, String arg2,
@@ -204,16 +258,18 @@ public class Codegen {
                                        String comment, String arg1) {
         int space = MAXLEN - opcode.length() + 2;
 
-        p.print(label + ":");
-        p.print("\t" + opcode);
+        LocalValues.clear();
+
+        out().print(label + ":");
+        out().print("\t" + opcode);
         if (arg1 != "") {
             for (int k = 1; k <= space; k++)
-                p.print(" ");
-            p.print(arg1);
+                out().print(" ");
+            out().print(arg1);
         }
         if (comment != "")
-            p.print("\t# " + comment);
-        p.println();
+            out().print("\t# " + comment);
+        out().println();
     }
 
     public static void generateLabeled(String label, String opcode,
@@ -245,10 +301,11 @@ public class Codegen {
     //   generate: L:    # comment
     // **********************************************************************
     public static void genLabel(String label, String comment) {
-        p.print(label + ":");
+        LocalValues.clear();
+        out().print(label + ":");
         if (comment != "")
-            p.print("\t\t" + "# " + comment);
-        p.println();
+            out().print("\t\t" + "# " + comment);
+        out().println();
     }
 
     public static void genLabel(String label) {
@@ -258,22 +315,192 @@ public class Codegen {
     // **********************************************************************
     // Return a different label each time:
     //        L0 L1 L2, etc.
+    // inside a function f the labels are .Lf_0 .Lf_1 .Lf_2, etc.
     // **********************************************************************
     public static String nextLabel() {
-        Integer k = new Integer(currLabel++);
-        String tmp = ".L" + k;
-        return(tmp);
+        LabelScope s = scope.get();
+        if (s == null) {
+            return ".L" + currLabel.getAndIncrement();
+        }
+        return ".L" + s.prefix + "_" + s.currLabel++;
+    }
+
+    // **********************************************************************
+    // enterFunction / exitFunction
+    //    labels created in between belong to the namespace of function name
+    // **********************************************************************
+    public static void enterFunction(String name) {
+        scope.set(new LabelScope(name));
+        LocalValues.clear();
+    }
+
+    // returns the string literals used by the function (literal -> label)
+    public static Map<String, String> exitFunction() {
+        LabelScope s = scope.get();
+        scope.remove();
+        return s.labelMap;
+    }
+
+    // **********************************************************************
+    // startBuffering / stopBuffering
+    //    collect the code generated by the current thread and return it
+    // **********************************************************************
+    public static void startBuffering() {
+        buffer.set(new Buffer(buffer.get()));
+    }
+
+    public static String stopBuffering() {
+        Buffer b = buffer.get();
+        b.out.flush();
+        if (b.prev == null) {
+            buffer.remove();
+        } else {
+            buffer.set(b.prev);
+        }
+        return b.text.toString();
+    }
+
+    // write text produced by stopBuffering
+    public static void emit(String text) {
+        out().print(text);
+    }
+
+    private static PrintWriter out() {
+        Buffer b = buffer.get();
+        return b == null ? p : b.out;
     }
 
+    // **********************************************************************
+    // stringLabel
+    //    return the label for the given string literal, adding it to the
+    //    pool if this function has not used it yet
+    // **********************************************************************
+    public static String stringLabel(String strLit)
+    {
+        LabelScope s = scope.get();
+        String label = s == null ? null : s.labelMap.get(strLit);
+        if (label == null) {
+            label = nextLabel();
+            if (s != null) {
+                s.labelMap.put(strLit, label);
+            }
+            addString(strLit, label);
+        }
+        return label;
+    }
+
+    // **********************************************************************
+    // addString
+    //    add a string literal to the pool under a label that was allocated
+    //    in an earlier run (for code taken from the FnCache)
+    // **********************************************************************
+    public static void addString(String strLit, String label)
+    {
+        stringPool.computeIfAbsent(strLit,
+            k -> new ConcurrentSkipListSet<String>()).add(label);
+    }
 
-    public static String findLabel(String strLit)
+    // **********************************************************************
+    // addGlobal
+    //    reserve size bytes for a global under the given label
+    // **********************************************************************
+    public static void addGlobal(String label, int size)
     {
-        if(labelMap.containsKey(strLit)) return labelMap.get(strLit);
-        return null;
+        globals.put(label, size);
     }
 
-    public static void addLabel(String strLit, String label)
+    // **********************************************************************
+    // genDataSection
+    //    emit the globals (by label) and then the pooled string literals,
+    //    all in one .data section. Literals with the same characters are
+    //    emitted once under all of their labels, and a literal that ends
+    //    another one is not emitted at all: its labels go inside the
+    //    longer one, which is cut into .ascii pieces there. Literals are
+    //    ordered by their smallest label so the output does not depend on
+    //    how the functions were scheduled.
+    // **********************************************************************
+    public static void genDataSection()
     {
-        labelMap.put(strLit, label);
+        if (globals.isEmpty() && stringPool.isEmpty()) return;
+
+        generateDirectory(".data");
+        generateDirectory(".align", "2");  // every global is whole words
+        for (Map.Entry<String, Integer> g : globals.entrySet()) {
+            generateLabeled(g.getKey(), ".space", "", " " + g.getValue());
+        }
+
+        // characters of each literal -> its labels
+        Map<String, TreeSet<String>> labels = new HashMap<>();
+        for (Map.Entry<String, ConcurrentSkipListSet<String>> e :
+                 stringPool.entrySet()) {
+            labels.computeIfAbsent(unquote(e.getKey()), k -> new TreeSet<String>())
+                  .addAll(e.getValue());
+        }
+
+        // sorted on the reversed characters, a string that ends the next
+        // one ends all the strings up to the first that it does not end;
+        // each such run is emitted as its last (longest) string
+        List<String> reversed = new ArrayList<>();
+        for (String str : labels.keySet()) {
+            reversed.add(new StringBuilder(str).reverse().toString());
+        }
+        Collections.sort(reversed);
+        TreeMap<String, List<String>> byLabel = new TreeMap<>();
+        List<String> run = new ArrayList<>();
+        for (int k = 0; k < reversed.size(); k++) {
+            run.add(new StringBuilder(reversed.get(k)).reverse().toString());
+            if (k + 1 == reversed.size()
+                || !reversed.get(k + 1).startsWith(reversed.get(k))) {
+                String first = null;
+                for (String str : run) {
+                    String l = labels.get(str).first();
+                    first = first == null || l.compareTo(first) < 0 ? l : first;
+                }
+                byLabel.put(first, run);
+                run = new ArrayList<>();
+            }
+        }
+
+        for (List<String> strs : byLabel.values()) {
+            String host = strs.get(strs.size() - 1);
+            int from = 0;
+            for (int k = strs.size() - 1; k >= 0; k--) {  // longest first
+                int at = host.length() - strs.get(k).length();
+                if (at > from) {
+                    generateDirectory(".ascii", quote(host.substring(from, at)));
+                    from = at;
+                }
+                for (String label : labels.get(strs.get(k))) {
+                    genLabel(label);
+                }
+            }
+            generateDirectory(".asciiz", quote(host.substring(from)));
+        }
+    }
+
+    // the characters of a string literal of the source
+    private static String unquote(String strLit)
+    {
+        StringBuilder str = new StringBuilder();
+        for (int k = 1; k < strLit.length() - 1; k++) {
+            char c = strLit.charAt(k);
+            if (c == '\\') {
+                c = strLit.charAt(++k);
+                c = c == 'n' ? '\n' : c == 't' ? '\t' : c;
+            }
+            str.append(c);
+        }
+        return str.toString();
+    }
+
+    // a string literal of the assembler for the given characters
+    private static String quote(String str)
+    {
+        StringBuilder lit = new StringBuilder("\"");
+        for (char c : str.toCharArray()) {
+            lit.append(c == '\n' ? "\\n" : c == '\t' ? "\\t"
+                       : c == '"' ? "\\\"" : c == '\\' ? "\\\\" : "" + c);
+        }
+        return lit.append('"').toString();
     }
 }
@@ -0,0 +1,133 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * CompileCache
+ *
+ * Content-addressed cache of whole compilations, shared by compilers that
+ * run on identical inputs (e.g. many CI jobs). An entry is keyed by the
+ * SHA-256 of the compiler version, the options that affect the output and
+ * the source text, and holds the result code, the messages and the
+ * generated assembly.
+ *
+ * Entries are written to a temporary file and renamed into place, so a
+ * reader never sees a partial entry. Hits refresh the modification time
+ * of the entry, and after each store the least recently used entries are
+ * removed until the directory is below its size bound. A temporary file
+ * left by a compiler that died before renaming it counts toward the
+ * bound, and is removed once it is older than FnCache.STALE_TMP.
+ */
+class CompileCache {
+    private Path dir;
+    private long maxBytes;
+
+    /**
+     * Cache in directory dir (created if needed).
+     * @param dir cache directory
+     * @param maxBytes size bound of all entries together
+     */
+    public CompileCache(String dir, long maxBytes) throws IOException {
+        this.dir = Paths.get(dir);
+        this.maxBytes = maxBytes;
+        Files.createDirectories(this.dir);
+    }
+
+    /**
+     * Result of one compilation.
+     */
+    static class Entry {
+        int resultCode;
+        String msgs;    // messages printed by ErrMsg
+        String asm;     // contents of the output file
+
+        Entry(int resultCode, String msgs, String asm) {
+            this.resultCode = resultCode;
+            this.msgs = msgs;
+            this.asm = asm;
+        }
+    }
+
+    /**
+     * Compute the key of a compilation.
+     */
+    public String key(String version, String options, String source) {
+        MessageDigest md = FnCache.sha256();
+        for (String part : new String[] {version, options, source}) {
+            byte[] b = part.getBytes(StandardCharsets.UTF_8);
+            md.update((byte)(b.length >>> 24));
+            md.update((byte)(b.length >>> 16));
+            md.update((byte)(b.length >>> 8));
+            md.update((byte)b.length);
+            md.update(b);
+        }
+        return FnCache.hex(md.digest());
+    }
+
+    /**
+     * Return the entry for key, or null if there is none.
+     */
+    public Entry lookup(String key) {
+        Path file = dir.resolve(key + ".out");
+        try (DataInputStream in = new DataInputStream(
+                 new BufferedInputStream(Files.newInputStream(file)))) {
+            Entry e = new Entry(in.readInt(), readString(in), readString(in));
+            try {
+                Files.setLastModifiedTime(file,
+                    FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException ex) {
+                // evicted meanwhile; we already have the contents
+            }
+            return e;
+        } catch (IOException ex) {
+            return null;  // missing or damaged: a miss
+        }
+    }
+
+    /**
+     * Store an entry for key, then evict old entries if the cache is over
+     * its size bound. Failures are ignored; the cache is only an
+     * optimization.
+     */
+    public void store(String key, Entry e) {
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(dir, key, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(e.resultCode);
+                writeString(out, e.msgs);
+                writeString(out, e.asm);
+            }
+            Files.move(tmp, dir.resolve(key + ".out"),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+            FnCache.evict(dir, "*.out", maxBytes);
+        } catch (IOException ex) {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ex2) {
+                    // nothing more to do
+                }
+            }
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+        throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+}
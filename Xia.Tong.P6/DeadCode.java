@@ -0,0 +1,299 @@
+import java.util.*;
+
+/**
+ * DeadCode
+ *
+ * Cleans up the body of one function just before its code is generated:
+ *    - statements that cannot be reached are dropped: those after a
+ *      return, after an if-else whose two branches end in a return, or
+ *      after a while (true), as well as if (false) and while (false);
+ *    - assignments, ++ and -- to a local or formal that is never read
+ *      are dropped, if the assigned expression has no call or assignment
+ *      in it; this is repeated, since dropping one may leave another
+ *      variable unread;
+ *    - locals that no statement mentions any more get no frame slot, the
+ *      others are laid out again and the local size of the FnSym shrinks;
+ *    - a return that is the last statement of the body does not branch
+ *      to the exit code right after it.
+ * Only the nodes and symbols of the function itself are changed, so the
+ * functions can be done in parallel.
+ *
+ * After the unreachable statements are gone the body is flattened once
+ * into a FlatTree, and the rest are loops over its arrays: a statement
+ * that is dropped is marked in them, so they need not be built again
+ * for each round of dropping dead stores.
+ */
+class DeadCode {
+    // check the read scan on the flat tree against the one written as an
+    // ASTVisitor, in every round (P6 -checkflat)
+    static boolean check = false;
+
+    /**
+     * Clean up the function with symbol sym, formals and body.
+     */
+    static void eliminate(FnSym sym, FormalsListNode formals, FnBodyNode body) {
+        dropUnreachable(body);
+
+        Set<TSym> vars = Collections.newSetFromMap(new IdentityHashMap<TSym, Boolean>());
+        List<VarDeclNode> locals = new ArrayList<VarDeclNode>();
+        collectDecls(formals, vars, null);
+        collectDecls(body, vars, locals);
+
+        FlatTree flat = new FlatTree(body);
+        boolean[] dropped = new boolean[flat.size];
+        while (dropDeadStores(flat, dropped, vars)) {
+            // until nothing more is dropped
+        }
+
+        Set<TSym> used = mentioned(flat, dropped, vars);
+        int offset = -(sym.getParamSize() + 8);
+        int start = offset;
+        for (VarDeclNode decl : locals) {
+            if (used.contains(decl.sym())) {
+                offset -= decl.size() - 4;
+                decl.sym().setOffset(offset);
+                offset -= 4;
+            }
+        }
+        sym.setLocalSize(start - offset);
+
+        List<? extends ASTnode> kids = body.children();
+        List<? extends ASTnode> stmts = kids.get(kids.size() - 1).children();
+        if (!stmts.isEmpty() && stmts.get(stmts.size() - 1) instanceof ReturnStmtNode) {
+            ((ReturnStmtNode)stmts.get(stmts.size() - 1)).setLast();
+        }
+    }
+
+    /**
+     * Drop the statements of tree that cannot be reached. Statement lists
+     * are done after the statements in them (walk calls leave on the kids
+     * first), so whether a statement ends in a return is known when the
+     * list it is in is done.
+     */
+    private static void dropUnreachable(ASTnode tree) {
+        Set<ASTnode> returns = Collections.newSetFromMap(new IdentityHashMap<ASTnode, Boolean>());
+        tree.walk(new ASTVisitor() {
+            public boolean enter(ASTnode node) {
+                return !(node instanceof ExpNode);
+            }
+
+            public void leave(ASTnode node) {
+                List<? extends ASTnode> kids = node.children();
+                if (node instanceof ReturnStmtNode
+                    || (node instanceof WhileStmtNode && kids.get(0) instanceof TrueNode)
+                    || (node instanceof IfStmtNode && kids.get(0) instanceof TrueNode
+                        && returns.contains(kids.get(2)))
+                    || (node instanceof IfElseStmtNode && returns.contains(kids.get(2))
+                        && returns.contains(kids.get(4)))) {
+                    returns.add(node);
+                } else if (node instanceof StmtListNode) {
+                    List<StmtNode> kept = new ArrayList<StmtNode>();
+                    for (ASTnode kid : kids) {
+                        if ((kid instanceof IfStmtNode || kid instanceof WhileStmtNode)
+                            && kid.children().get(0) instanceof FalseNode) {
+                            continue;
+                        }
+                        kept.add((StmtNode)kid);
+                        if (returns.contains(kid)) {
+                            returns.add(node);
+                            break;
+                        }
+                    }
+                    if (kept.size() < kids.size()) {
+                        ((StmtListNode)node).setStmts(kept);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Add the symbols of the variables declared in tree to vars, and
+     * their decls to locals if it is not null. Struct declarations are
+     * only at the top level, so no field is taken for a variable.
+     */
+    private static void collectDecls(ASTnode tree, Set<TSym> vars,
+                                     List<VarDeclNode> locals) {
+        tree.walk(new ASTVisitor() {
+            public boolean enter(ASTnode node) {
+                if (node instanceof VarDeclNode || node instanceof FormalDeclNode) {
+                    TSym sym = ((IdNode)node.children().get(1)).sym();
+                    if (sym != null) {
+                        vars.add(sym);
+                        if (locals != null) {
+                            locals.add((VarDeclNode)node);
+                        }
+                    }
+                    return false;
+                }
+                return !(node instanceof ExpNode);
+            }
+        });
+    }
+
+    /**
+     * Drop the statements of flat that only change variables of vars that
+     * are never read, and mark their nodes in dropped. Returns true if any
+     * was dropped.
+     */
+    private static boolean dropDeadStores(FlatTree flat, boolean[] dropped,
+                                          Set<TSym> vars) {
+        Set<TSym> read = readVars(flat, dropped);
+        if (check && !read.equals(readVars(flat.node[0]))) {
+            throw new IllegalStateException("flat and visitor read scans differ");
+        }
+
+        boolean any = false;
+        for (int i = 0; i < flat.size; i++) {
+            if (dropped[i] || flat.node[i] instanceof ExpNode) {
+                i = flat.end[i] - 1;    // skip the subtree
+                continue;
+            }
+            if (!(flat.node[i] instanceof StmtListNode)) {
+                continue;
+            }
+            List<StmtNode> kept = new ArrayList<StmtNode>();
+            boolean drop = false;
+            for (int k = flat.firstChild[i]; k >= 0; k = flat.nextSibling[k]) {
+                if (dropped[k]) {
+                    continue;
+                }
+                ASTnode kid = flat.node[k];
+                ExpNode target = kid instanceof ReadStmtNode ? null : target(kid);
+                TSym sym = target == null ? null : root(target).sym();
+                if (sym != null && vars.contains(sym) && !read.contains(sym)
+                    && pure(kid)) {
+                    dropped[k] = true;
+                    drop = true;
+                    continue;
+                }
+                kept.add((StmtNode)kid);
+            }
+            if (drop) {
+                ((StmtListNode)flat.node[i]).setStmts(kept);
+                any = true;
+            }
+        }
+        return any;
+    }
+
+    /**
+     * Return the symbols of the variables read in flat, leaving out the
+     * nodes marked in dropped: the ids that are not the variable a store
+     * goes to. The variable of a store comes after the store in the
+     * arrays, so it is marked before the loop gets to it.
+     */
+    private static Set<TSym> readVars(FlatTree flat, boolean[] dropped) {
+        Set<TSym> read = Collections.newSetFromMap(new IdentityHashMap<TSym, Boolean>());
+        boolean[] stored = new boolean[flat.size];
+        for (int i = 0; i < flat.size; i++) {
+            ASTnode node = flat.node[i];
+            if (dropped[i] || node instanceof VarDeclNode) {
+                i = flat.end[i] - 1;
+                continue;
+            }
+            if (target(node) != null) {
+                int k = flat.firstChild[i];
+                if (node instanceof AssignStmtNode) {
+                    k = flat.firstChild[k];     // its AssignNode
+                }
+                while (flat.node[k] instanceof DotAccessExpNode) {
+                    k = flat.firstChild[k];
+                }
+                stored[k] = true;
+            } else if (node instanceof IdNode && !stored[i]) {
+                read.add(((IdNode)node).sym());
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Return the symbols of the variables read in tree, as readVars above
+     * but written as an ASTVisitor; see check.
+     */
+    private static Set<TSym> readVars(ASTnode tree) {
+        Set<TSym> read = Collections.newSetFromMap(new IdentityHashMap<TSym, Boolean>());
+        Set<ASTnode> stores = Collections.newSetFromMap(new IdentityHashMap<ASTnode, Boolean>());
+        tree.walk(new ASTVisitor() {
+            public boolean enter(ASTnode node) {
+                if (node instanceof VarDeclNode) {
+                    return false;
+                }
+                ExpNode target = target(node);
+                if (target != null) {
+                    stores.add(root(target));
+                } else if (node instanceof IdNode && !stores.contains(node)) {
+                    read.add(((IdNode)node).sym());
+                }
+                return true;
+            }
+        });
+        return read;
+    }
+
+    /**
+     * Return the symbols of vars that flat mentions, leaving out the nodes
+     * marked in dropped.
+     */
+    private static Set<TSym> mentioned(FlatTree flat, boolean[] dropped, Set<TSym> vars) {
+        Set<TSym> used = Collections.newSetFromMap(new IdentityHashMap<TSym, Boolean>());
+        for (int i = 0; i < flat.size; i++) {
+            ASTnode node = flat.node[i];
+            if (dropped[i] || node instanceof VarDeclNode) {
+                i = flat.end[i] - 1;
+            } else if (node instanceof IdNode && vars.contains(((IdNode)node).sym())) {
+                used.add(((IdNode)node).sym());
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Return the location node stores into, if it is an assignment
+     * (statement or expression), a ++, a -- or a cin statement.
+     */
+    private static ExpNode target(ASTnode node) {
+        if (node instanceof AssignStmtNode) {
+            node = node.children().get(0);
+        }
+        if (node instanceof AssignNode || node instanceof PostIncStmtNode
+            || node instanceof PostDecStmtNode || node instanceof ReadStmtNode) {
+            return (ExpNode)node.children().get(0);
+        }
+        return null;
+    }
+
+    /**
+     * Return the variable a location (an id or a dot-access) is in.
+     */
+    private static IdNode root(ExpNode loc) {
+        while (loc instanceof DotAccessExpNode) {
+            loc = (ExpNode)loc.children().get(0);
+        }
+        return (IdNode)loc;
+    }
+
+    /**
+     * Does statement stmt do nothing but its own store? The target itself
+     * is not looked at: it is an id or a dot-access.
+     */
+    private static boolean pure(ASTnode stmt) {
+        if (stmt instanceof AssignStmtNode) {
+            stmt = stmt.children().get(0);
+        }
+        if (!(stmt instanceof AssignNode)) {
+            return true;    // ++ or --
+        }
+        boolean[] pure = {true};
+        stmt.children().get(1).walk(new ASTVisitor() {
+            public boolean enter(ASTnode node) {
+                if (node instanceof CallExpNode || node instanceof AssignNode) {
+                    pure[0] = false;
+                }
+                return pure[0];
+            }
+        });
+        return pure[0];
+    }
+}
@@ -4,7 +4,24 @@
  * This class is used to generate warning and fatal error messages.
  */
 class ErrMsg {
-	private static boolean err = false;
+	private static volatile boolean err = false;
+
+	// per-thread message buffer, used by passes that run in parallel so
+	// that their diagnostics can be printed in source order afterwards.
+	// Buffers nest: stopBuffering returns to the enclosing one.
+	private static final ThreadLocal<Buffer> buffer = new ThreadLocal<Buffer>();
+
+	// copy of everything printed, kept when recording (see CompileCache)
+	private static StringBuffer transcript = null;
+
+	private static class Buffer {
+		StringBuilder text = new StringBuilder();
+		Buffer prev;
+
+		Buffer(Buffer prev) {
+			this.prev = prev;
+		}
+	}
 
 	/**
 	 * Generates a fatal error message.
@@ -14,7 +31,7 @@ class ErrMsg {
 	 */
 	static void fatal(int lineNum, int charNum, String msg) {
 		err = true;
-		System.err.println(lineNum + ":" + charNum + " ***ERROR*** " + msg);
+		print(lineNum + ":" + charNum + " ***ERROR*** " + msg);
 	}
 
 	/**
@@ -24,7 +41,7 @@ class ErrMsg {
 	 * @param msg associated message for warning
 	 */
 	static void warn(int lineNum, int charNum, String msg) {
-		System.err.println(lineNum + ":" + charNum + " ***WARNING*** " + msg);
+		print(lineNum + ":" + charNum + " ***WARNING*** " + msg);
 	}
 
 	/**
@@ -34,4 +51,84 @@ class ErrMsg {
 		return err;
 	}
 
+	/**
+	 * Starts collecting the messages of the calling thread instead of
+	 * printing them.
+	 */
+	static void startBuffering() {
+		buffer.set(new Buffer(buffer.get()));
+	}
+
+	/**
+	 * Stops collecting messages for the calling thread.
+	 * @return the messages collected since startBuffering
+	 */
+	static String stopBuffering() {
+		Buffer b = buffer.get();
+		if (b == null) {
+			return "";
+		}
+		if (b.prev == null) {
+			buffer.remove();
+		} else {
+			buffer.set(b.prev);
+		}
+		return b.text.toString();
+	}
+
+	/**
+	 * Prints messages previously returned by stopBuffering (into the
+	 * enclosing buffer, if there is one).
+	 * @param msgs collected messages
+	 */
+	static void flush(String msgs) {
+		Buffer b = buffer.get();
+		if (b != null) {
+			b.text.append(msgs);
+		} else {
+			System.err.print(msgs);
+			System.err.flush();
+			if (transcript != null) {
+				transcript.append(msgs);
+			}
+		}
+	}
+
+	/**
+	 * Starts keeping a copy of every message printed from now on.
+	 */
+	static void record() {
+		transcript = new StringBuffer();
+	}
+
+	/**
+	 * Returns the messages printed since record.
+	 */
+	static String transcript() {
+		return transcript == null ? "" : transcript.toString();
+	}
+
+	/**
+	 * Prints messages saved by an earlier run (see FnCache) and sets the
+	 * err flag if any of them is an error.
+	 * @param msgs saved messages
+	 */
+	static void replay(String msgs) {
+		if (msgs.contains("***ERROR***")) {
+			err = true;
+		}
+		flush(msgs);
+	}
+
+	private static void print(String msg) {
+		Buffer b = buffer.get();
+		if (b != null) {
+			b.text.append(msg).append(System.lineSeparator());
+		} else {
+			System.err.println(msg);
+			if (transcript != null) {
+				transcript.append(msg).append(System.lineSeparator());
+			}
+		}
+	}
 }
@@ -0,0 +1,592 @@
+import java.io.*;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import java_cup.runtime.*;
+
+/**
+ * FastLexer
+ *
+ * Hand-written scanner for the tokens of Gibberish.jlex, used in place of
+ * the generated Yylex with P6 -fastlex. It reads its input into a char
+ * array, whole lines at a time since no token spans lines (so memory use
+ * is bounded by the longest line, not the size of the input, as -stream
+ * needs), and dispatches on the first character of each token, so
+ * identifiers, literals and white space are scanned by plain loops
+ * instead of one table lookup per character, and no String is made for a
+ * token except for a new identifier or a string literal.
+ *
+ * The tokens, their line and character numbers and the messages are the
+ * same as Yylex's, which takes the longest match and, for matches of the
+ * same length, the first rule.
+ * That includes the quirks of Yylex: a '\r' in a string or comment ends
+ * a line, and one anywhere else matches no rule and is an Error. The one
+ * difference is input outside 7-bit ASCII, which Yylex cannot scan;
+ * FastLexer reports it as an illegal character (or accepts it in a
+ * string or comment). FastLexer keeps its character number to itself
+ * instead of in CharNum.num, so that several can run at once (see
+ * ParallelLexer).
+ *
+ * java FastLexer file... checks that both scanners give the same tokens
+ * and messages for each file and compares their speed.
+ */
+class FastLexer implements Scanner {
+    private Reader in;      // the rest of the input, null once all read
+    private char[] buf;
+    private int pos;        // start of the next token
+    private int end;        // end of the whole lines (or all the input) in buf
+    private int read;       // end of the characters read into buf
+    private int line = 0;   // line of pos, from 0 (Yylex's yyline)
+    private int charNum = 1;  // character number of pos on its line
+
+    // identifiers, interned as in Yylex (see idText in Gibberish.jlex)
+    private String[] ids = new String[256];  // open addressing, power of 2
+    private int numIds = 0;
+
+    /**
+     * Scanner for the text of in.
+     */
+    FastLexer(Reader in) {
+        this.in = in;
+        this.buf = new char[1 << 16];
+    }
+
+    /**
+     * Scanner for buf[start..end), which must start at the start of a
+     * line. Its line numbers count from the line of start.
+     */
+    FastLexer(char[] buf, int start, int end) {
+        this.buf = buf;
+        this.pos = start;
+        this.end = end;
+    }
+
+    public Symbol next_token() throws IOException {
+        while (pos < end || fill()) {
+            int start = pos;
+            char c = buf[pos];
+            switch (c) {
+            case '\n':
+                if (start == 0 || buf[start - 1] != '\r') {
+                    line++;
+                }
+                charNum = 1;
+                pos++;
+                continue;
+
+            case ' ':
+            case '\t':
+                do {
+                    pos++;
+                } while (pos < end && (buf[pos] == ' ' || buf[pos] == '\t'));
+                charNum += pos - start;
+                continue;
+
+            case '#':
+                skipComment();
+                continue;
+
+            case '/':
+                if (next('/')) {
+                    skipComment();
+                    continue;
+                }
+                return token(sym.DIVIDE, 1);
+
+            case '"':
+                Symbol S = string();
+                if (S != null) {
+                    return S;
+                }
+                continue;
+
+            case '{': return token(sym.LCURLY, 1);
+            case '}': return token(sym.RCURLY, 1);
+            case '(': return token(sym.LPAREN, 1);
+            case ')': return token(sym.RPAREN, 1);
+            case ';': return token(sym.SEMICOLON, 1);
+            case ',': return token(sym.COMMA, 1);
+            case '.': return token(sym.DOT, 1);
+            case '*': return token(sym.TIMES, 1);
+
+            case '<':
+                return next('<') ? token(sym.WRITE, 2)
+                     : next('=') ? token(sym.LESSEQ, 2) : token(sym.LESS, 1);
+            case '>':
+                return next('>') ? token(sym.READ, 2)
+                     : next('=') ? token(sym.GREATEREQ, 2) : token(sym.GREATER, 1);
+            case '+':
+                return next('+') ? token(sym.PLUSPLUS, 2) : token(sym.PLUS, 1);
+            case '-':
+                return next('-') ? token(sym.MINUSMINUS, 2) : token(sym.MINUS, 1);
+            case '!':
+                return next('=') ? token(sym.NOTEQUALS, 2) : token(sym.NOT, 1);
+            case '=':
+                return next('=') ? token(sym.EQUALS, 2) : token(sym.ASSIGN, 1);
+            case '&':
+                if (next('&')) {
+                    return token(sym.AND, 2);
+                }
+                break;
+            case '|':
+                if (next('|')) {
+                    return token(sym.OR, 2);
+                }
+                break;
+
+            default:
+                if (isLetter(c) || c == '_') {
+                    return word();
+                }
+                if (c >= '0' && c <= '9') {
+                    return intLiteral();
+                }
+                break;
+            }
+
+            // any other character; Yylex's "." does not match '\r'
+            if (c == '\r') {
+                throw new Error("Lexical Error: Unmatched Input.");
+            }
+            message(true, line + 1, charNum, "illegal character ignored: " + c);
+            charNum++;
+            pos++;
+        }
+        return new Symbol(sym.EOF);
+    }
+
+    /**
+     * Read more of the input when pos has reached end: move what is left
+     * of buf to its start, keeping the character before pos (a '\n' after
+     * a '\r' ends no line), and read until there is a whole line after
+     * pos or all the input is read. Returns false if there is nothing
+     * left to scan.
+     */
+    private boolean fill() throws IOException {
+        if (in == null) {
+            return false;
+        }
+        int keep = Math.max(pos - 1, 0);
+        System.arraycopy(buf, keep, buf, 0, read - keep);
+        read -= keep;
+        pos -= keep;
+        int scanned = pos;
+        while (true) {
+            for (int k = read; k > scanned; k--) {
+                if (buf[k - 1] == '\n') {
+                    end = k;
+                    return true;
+                }
+            }
+            scanned = read;
+            if (read == buf.length) {
+                buf = Arrays.copyOf(buf, 2 * buf.length);
+            }
+            int n = in.read(buf, read, buf.length - read);
+            if (n < 0) {
+                in = null;
+                end = read;
+                return pos < end;
+            }
+            read += n;
+        }
+    }
+
+    /**
+     * Return the number of lines scanned so far.
+     */
+    int lines() {
+        return line;
+    }
+
+    /**
+     * Print a message (an error if fatal, else a warning). ParallelLexer
+     * overrides this to keep the messages for later.
+     */
+    void message(boolean fatal, int lineNum, int charNum, String msg) {
+        if (fatal) {
+            ErrMsg.fatal(lineNum, charNum, msg);
+        } else {
+            ErrMsg.warn(lineNum, charNum, msg);
+        }
+    }
+
+    /**
+     * Is the character after the one at pos c?
+     */
+    private boolean next(char c) {
+        return pos + 1 < end && buf[pos + 1] == c;
+    }
+
+    /**
+     * Return a token of kind k and length len starting at pos.
+     */
+    private Symbol token(int k, int len) {
+        Symbol S = new Symbol(k, new TokenVal(line + 1, charNum));
+        charNum += len;
+        pos += len;
+        return S;
+    }
+
+    /**
+     * Skip a comment, up to the end of its line. The character number is
+     * not updated, since the next token is on a new line.
+     */
+    private void skipComment() {
+        int start = pos;
+        while (pos < end && buf[pos] != '\n') {
+            pos++;
+        }
+        line += crs(start, pos);
+    }
+
+    /**
+     * Scan a keyword or an identifier.
+     */
+    private Symbol word() {
+        int start = pos;
+        do {
+            pos++;
+        } while (pos < end && (isLetter(buf[pos]) || buf[pos] == '_'
+                               || (buf[pos] >= '0' && buf[pos] <= '9')));
+        int len = pos - start;
+        int k = keyword(start, len);
+        Symbol S = k >= 0 ? new Symbol(k, new TokenVal(line + 1, charNum))
+            : new Symbol(sym.ID, new IdTokenVal(line + 1, charNum, id(start, len)));
+        charNum += len;
+        return S;
+    }
+
+    /**
+     * Return the kind of the keyword buf[start..start+len), or -1 if it is
+     * not one.
+     */
+    private int keyword(int start, int len) {
+        switch (buf[start]) {
+        case 'b': return is(start, len, "bool") ? sym.BOOL : -1;
+        case 'i': return is(start, len, "int") ? sym.INT
+                       : is(start, len, "if") ? sym.IF : -1;
+        case 'v': return is(start, len, "void") ? sym.VOID : -1;
+        case 't': return is(start, len, "true") ? sym.TRUE : -1;
+        case 'f': return is(start, len, "false") ? sym.FALSE : -1;
+        case 's': return is(start, len, "struct") ? sym.STRUCT : -1;
+        case 'c': return is(start, len, "cin") ? sym.CIN
+                       : is(start, len, "cout") ? sym.COUT : -1;
+        case 'e': return is(start, len, "else") ? sym.ELSE : -1;
+        case 'w': return is(start, len, "while") ? sym.WHILE : -1;
+        case 'r': return is(start, len, "return") ? sym.RETURN
+                       : is(start, len, "repeat") ? sym.REPEAT : -1;
+        default:  return -1;
+        }
+    }
+
+    private boolean is(int start, int len, String s) {
+        if (len != s.length()) {
+            return false;
+        }
+        for (int k = 0; k < len; k++) {
+            if (buf[start + k] != s.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the interned String of the identifier buf[start..start+len).
+     */
+    private String id(int start, int len) {
+        int h = 0;
+        for (int k = start; k < start + len; k++) {
+            h = 31 * h + buf[k];  // same as String.hashCode
+        }
+        int mask = ids.length - 1;
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            String s = ids[i];
+            if (s == null) {
+                s = new String(buf, start, len);
+                ids[i] = s;
+                if (++numIds * 2 > ids.length) {
+                    growIds();
+                }
+                return s;
+            }
+            if (s.hashCode() == h && is(start, len, s)) {
+                return s;
+            }
+        }
+    }
+
+    private void growIds() {
+        String[] old = ids;
+        ids = new String[2 * old.length];
+        int mask = ids.length - 1;
+        for (String s : old) {
+            if (s != null) {
+                int i = s.hashCode() & mask;
+                while (ids[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                ids[i] = s;
+            }
+        }
+    }
+
+    /**
+     * Scan an integer literal, warning if it is too large.
+     */
+    private Symbol intLiteral() {
+        int start = pos;
+        long val = 0;
+        do {
+            if (val <= Integer.MAX_VALUE) {
+                val = 10 * val + (buf[pos] - '0');
+            }
+            pos++;
+        } while (pos < end && buf[pos] >= '0' && buf[pos] <= '9');
+        int intVal = (int)val;
+        if (val > Integer.MAX_VALUE) {
+            message(false, line + 1, charNum,
+                    "integer literal too large; using max value");
+            intVal = Integer.MAX_VALUE;
+        }
+        Symbol S = new Symbol(sym.INTLITERAL,
+                              new IntLitTokenVal(line + 1, charNum, intVal));
+        charNum += pos - start;
+        return S;
+    }
+
+    /**
+     * Scan a string literal starting at pos. Returns its token, or null if
+     * it is bad and was reported and skipped.
+     *
+     * Yylex has four rules for strings, which all start with the longest
+     * run of plain characters and good escapes (a deterministic prefix, so
+     * it ends at the same place for each rule):
+     *   1. the run and a quote: a string literal
+     *   2. the run alone: unterminated
+     *   3. the run, a bad escape, anything but quotes and a quote: a bad
+     *      escape
+     *   4. the run, maybe a bad escape, another run, maybe a backslash:
+     *      unterminated with a bad escape
+     * Of these the longest match is taken, and of equally long ones the
+     * first. Only 1 and 3 move the character number past the text.
+     */
+    private Symbol string() {
+        int start = pos;
+        int run = run(start + 1);
+
+        if (run < end && buf[run] == '"') {
+            int len = run + 1 - start;
+            Symbol S = new Symbol(sym.STRINGLITERAL,
+                                  new StrLitTokenVal(line + 1, charNum,
+                                                     new String(buf, start, len)));
+            charNum += len;
+            skip(run + 1);
+            return S;
+        }
+
+        if (run == end || buf[run] == '\n') {
+            message(true, line + 1, charNum,
+                    "unterminated string literal ignored");
+            skip(run);
+            return null;
+        }
+
+        // a backslash that does not start a good escape
+        int end4 = run + 1;
+        int end3 = -1;
+        if (run + 1 < end && buf[run + 1] != '\n') {
+            int run2 = run(run + 2);
+            end4 = run2 < end && buf[run2] == '\\' ? run2 + 1 : run2;
+            int q = run + 2;
+            while (q < end && buf[q] != '"' && buf[q] != '\n') {
+                q++;
+            }
+            if (q < end && buf[q] == '"') {
+                end3 = q + 1;
+            }
+        }
+        if (end3 >= end4) {
+            message(true, line + 1, charNum,
+                    "string literal with bad escaped character ignored");
+            charNum += end3 - start;
+            skip(end3);
+        } else {
+            message(true, line + 1, charNum,
+                    "unterminated string literal with bad escaped character ignored");
+            skip(end4);
+        }
+        return null;
+    }
+
+    /**
+     * Return the end of the run of plain characters and good escapes of a
+     * string literal starting at k.
+     */
+    private int run(int k) {
+        while (k < end) {
+            char c = buf[k];
+            if (c == '\n' || c == '"') {
+                break;
+            }
+            if (c == '\\') {
+                if (k + 1 < end && isEscape(buf[k + 1])) {
+                    k += 2;
+                } else {
+                    break;
+                }
+            } else {
+                k++;
+            }
+        }
+        return k;
+    }
+
+    /**
+     * Move pos to to, counting the line ends passed.
+     */
+    private void skip(int to) {
+        line += crs(pos, to);
+        pos = to;
+    }
+
+    /**
+     * Return the number of '\r's in buf[from..to). A token never contains
+     * a '\n', but strings and comments can contain a '\r', which Yylex
+     * counts as the end of a line.
+     */
+    private int crs(int from, int to) {
+        int n = 0;
+        for (int k = from; k < to; k++) {
+            if (buf[k] == '\r') {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isEscape(char c) {
+        return c == 'n' || c == 't' || c == '\'' || c == '"' || c == '?' || c == '\\';
+    }
+
+    /**
+     * Read all of in. The text is the array of the result up to its
+     * limit.
+     */
+    static CharBuffer readAll(Reader in) throws IOException {
+        char[] buf = new char[1 << 16];
+        int end = 0;
+        int n;
+        while ((n = in.read(buf, end, buf.length - end)) >= 0) {
+            end += n;
+            if (end == buf.length) {
+                buf = Arrays.copyOf(buf, 2 * buf.length);
+            }
+        }
+        return CharBuffer.wrap(buf, 0, end);
+    }
+
+    /**
+     * Compare FastLexer with Yylex on each file named in args: check that
+     * they return the same tokens and messages, then time both.
+     */
+    public static void main(String[] args) throws Exception {
+        boolean same = true;
+        for (String file : args) {
+            String text = new String(java.nio.file.Files.readAllBytes(
+                                         java.nio.file.Paths.get(file)));
+
+            List<String> slow = new ArrayList<String>();
+            String slowMsgs = scan(new Yylex(new StringReader(text)), slow);
+            List<String> fast = new ArrayList<String>();
+            String fastMsgs = scan(new FastLexer(new StringReader(text)), fast);
+            if (!slow.equals(fast) || !slowMsgs.equals(fastMsgs)) {
+                System.out.println(file + ": DIFFERENT");
+                for (int k = 0; k < Math.max(slow.size(), fast.size()); k++) {
+                    String a = k < slow.size() ? slow.get(k) : "(none)";
+                    String b = k < fast.size() ? fast.get(k) : "(none)";
+                    if (!a.equals(b)) {
+                        System.out.println("  token " + k + ": Yylex " + a
+                                           + ", FastLexer " + b);
+                        break;
+                    }
+                }
+                if (!slowMsgs.equals(fastMsgs)) {
+                    System.out.println("  Yylex messages:\n" + slowMsgs
+                                       + "  FastLexer messages:\n" + fastMsgs);
+                }
+                same = false;
+                continue;
+            }
+
+            // time each for about a second, after as long a warm-up
+            int tokens = slow.size();
+            double slowRate = rate(text, tokens, false);
+            double fastRate = rate(text, tokens, true);
+            System.out.printf("%s: %d tokens, Yylex %.2f M tokens/s, "
+                              + "FastLexer %.2f M tokens/s (%.1fx)%n",
+                              file, tokens, slowRate / 1e6, fastRate / 1e6,
+                              fastRate / slowRate);
+        }
+        if (!same) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Scan all of text with s, adding a description of each token to
+     * tokens. Returns the messages.
+     */
+    private static String scan(Scanner s, List<String> tokens) throws Exception {
+        CharNum.num = 1;
+        ErrMsg.startBuffering();
+        Symbol S;
+        do {
+            S = s.next_token();
+            StringBuilder sb = new StringBuilder().append(S.sym);
+            if (S.value instanceof TokenVal) {
+                TokenVal v = (TokenVal)S.value;
+                sb.append(' ').append(v.linenum).append(':').append(v.charnum);
+            }
+            if (S.value instanceof IdTokenVal) {
+                sb.append(' ').append(((IdTokenVal)S.value).idVal);
+            } else if (S.value instanceof IntLitTokenVal) {
+                sb.append(' ').append(((IntLitTokenVal)S.value).intVal);
+            } else if (S.value instanceof StrLitTokenVal) {
+                sb.append(' ').append(((StrLitTokenVal)S.value).strVal);
+            }
+            tokens.add(sb.toString());
+        } while (S.sym != sym.EOF);
+        return ErrMsg.stopBuffering();
+    }
+
+    private static double rate(String text, int tokens, boolean fast)
+        throws Exception {
+        long total = 0;
+        int runs = 0;
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < 2_000_000_000L) {
+            long t0 = System.nanoTime();
+            CharNum.num = 1;
+            ErrMsg.startBuffering();
+            Scanner s = fast ? new FastLexer(new StringReader(text))
+                : new Yylex(new StringReader(text));
+            while (s.next_token().sym != sym.EOF) {
+                // just scan
+            }
+            ErrMsg.stopBuffering();
+            if (System.nanoTime() - start >= 1_000_000_000L) {
+                total += System.nanoTime() - t0;
+                runs++;
+            }
+        }
+        return runs == 0 ? 0 : (double)tokens * runs / (total / 1e9);
+    }
+}
@@ -0,0 +1,140 @@
+import java.util.*;
+
+// **********************************************************************
+// A FlatTree is a copy of the shape of an abstract-syntax tree in
+// parallel int arrays, indexed by node number:
+//     kind         kind of the node (see kindOf/kindName)
+//     firstChild   number of its first kid, or -1
+//     nextSibling  number of the next kid of its parent, or -1
+//     parent       number of its parent, or -1 for the root
+//     end          one past the number of the last node of its subtree
+//     line, col    source position
+// Nodes are numbered in depth-first order from 0 (the root), so the
+// subtree of node i is exactly the nodes i .. end[i]-1, and an analysis
+// can run as a plain loop over the arrays instead of following pointers
+// and virtual calls. node[i] maps back to the ASTnode.
+//
+// Literals and ids have their own position; every other node gets the
+// position of its first kid that has one.
+//
+// DeadCode flattens each function body once and runs its scans over the
+// arrays (P6 -checkflat checks its read scan against the ASTVisitor one).
+// **********************************************************************
+class FlatTree {
+    public final int size;
+    public final int[] kind;
+    public final int[] firstChild;
+    public final int[] nextSibling;
+    public final int[] parent;
+    public final int[] end;
+    public final int[] line;
+    public final int[] col;
+    public final ASTnode[] node;
+
+    // node kinds are numbered as they are first seen. Trees are flattened
+    // by the code generation workers at once, so the number of a class is
+    // looked up without a lock; only numbering a new class takes one (and
+    // finds the number given by another thread that got there first)
+    private static final List<String> kindNames = new ArrayList<String>();
+    private static final ClassValue<Integer> kinds = new ClassValue<Integer>() {
+        protected Integer computeValue(Class<?> c) {
+            synchronized (kindNames) {
+                int k = kindNames.indexOf(c.getName());
+                if (k < 0) {
+                    k = kindNames.size();
+                    kindNames.add(c.getName());
+                }
+                return k;
+            }
+        }
+    };
+
+    /**
+     * Flatten the tree rooted at root.
+     */
+    public FlatTree(ASTnode root) {
+        int[] count = new int[1];
+        root.walk(new ASTVisitor() {
+            public boolean enter(ASTnode n) {
+                count[0]++;
+                return true;
+            }
+        });
+
+        size = count[0];
+        kind = new int[size];
+        firstChild = new int[size];
+        nextSibling = new int[size];
+        parent = new int[size];
+        end = new int[size];
+        line = new int[size];
+        col = new int[size];
+        node = new ASTnode[size];
+
+        // number the nodes as they are entered; open holds the nodes
+        // entered but not yet left, lastChild the last kid seen of each
+        int[] open = new int[size];
+        int[] lastChild = new int[size];
+        root.walk(new ASTVisitor() {
+            int next = 0;
+            int top = -1;
+
+            public boolean enter(ASTnode n) {
+                int i = next++;
+                node[i] = n;
+                kind[i] = kindOf(n.getClass());
+                firstChild[i] = -1;
+                nextSibling[i] = -1;
+                lastChild[i] = -1;
+                parent[i] = top >= 0 ? open[top] : -1;
+                if (parent[i] >= 0) {
+                    int p = parent[i];
+                    if (lastChild[p] < 0) {
+                        firstChild[p] = i;
+                    } else {
+                        nextSibling[lastChild[p]] = i;
+                    }
+                    lastChild[p] = i;
+                }
+                open[++top] = i;
+                return true;
+            }
+
+            public void leave(ASTnode n) {
+                end[open[top--]] = next;
+            }
+        });
+
+        // positions, from the kids up
+        for (int i = size - 1; i >= 0; i--) {
+            if (node[i] instanceof ExpNode && firstChild[i] < 0) {
+                line[i] = ((ExpNode)node[i]).lineNum();
+                col[i] = ((ExpNode)node[i]).charNum();
+            } else {
+                for (int k = firstChild[i]; k >= 0; k = nextSibling[k]) {
+                    if (line[k] > 0) {
+                        line[i] = line[k];
+                        col[i] = col[k];
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the kind number of nodes of class c.
+     */
+    public static int kindOf(Class<? extends ASTnode> c) {
+        return kinds.get(c);
+    }
+
+    /**
+     * Return the name of the class of nodes of kind k.
+     */
+    public static String kindName(int k) {
+        synchronized (kindNames) {
+            return kindNames.get(k);
+        }
+    }
+}
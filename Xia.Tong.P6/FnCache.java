@@ -0,0 +1,307 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.*;
+import java.util.*;
+
+/**
+ * FnCache
+ *
+ * On-disk cache of per-function results, used to recompile a large file
+ * incrementally. An entry is keyed by a hash of
+ *    - the compiler version and code generation options,
+ *    - the source lines of the function,
+ *    - the function unparsed after name analysis, which shows the type of
+ *      every global and function it refers to,
+ *    - the struct definitions of the program.
+ * so it goes stale when the function, or the signature of anything it
+ * uses, changes.
+ *
+ * An entry holds the type checking messages of the function, and, if the
+ * whole program compiled, its assembly code together with the string
+ * literals it uses. Message line numbers are stored relative to the line
+ * of the function so a function that only moved can still be reused.
+ *
+ * Every change to a function, option or the compiler adds entries, so
+ * after each compilation the least recently used ones (hits refresh the
+ * modification time) are removed until the directory is below its size
+ * bound, as in CompileCache. It is done once per compilation rather than
+ * after each store, as there is an entry for every function.
+ */
+class FnCache {
+    // age after which a temporary file is taken to be left behind; a
+    // store takes far less
+    static final long STALE_TMP = 10 * 60 * 1000;
+
+    private Path dir;
+    private String salt;
+    private long maxBytes;
+    private String[] lines = new String[0];  // source being compiled
+
+    /**
+     * Cache in directory dir (created if needed).
+     * @param dir cache directory
+     * @param salt compiler version and options that affect the output
+     * @param maxBytes size bound of all entries together
+     */
+    public FnCache(String dir, String salt, long maxBytes) throws IOException {
+        this.dir = Paths.get(dir);
+        this.salt = salt;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(this.dir);
+    }
+
+    /**
+     * Set the text of the source file being compiled.
+     */
+    public void setSource(String text) {
+        lines = text.split("\n", -1);
+    }
+
+    /**
+     * Return source lines from (inclusive) to to (exclusive), numbered
+     * from 1.
+     */
+    public String source(int from, int to) {
+        StringBuilder sb = new StringBuilder();
+        for (int k = Math.max(from, 1); k < to && k <= lines.length; k++) {
+            sb.append(lines[k - 1]).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Cached result of one function.
+     */
+    static class Entry {
+        int line;           // line of the function when it was stored
+        String msgs;        // type checking messages
+        String code;        // assembly code, null if not generated
+        Map<String, String> strings;  // string literal -> label
+
+        Entry(int line, String msgs, String code, Map<String, String> strings) {
+            this.line = line;
+            this.msgs = msgs;
+            this.code = code;
+            this.strings = strings;
+        }
+
+        /**
+         * Return the messages with their line numbers moved to a function
+         * that now starts at line.
+         */
+        String msgsAt(int newLine) {
+            if (msgs.isEmpty() || newLine == line) {
+                return msgs;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (String m : msgs.split("(?<=\n)")) {
+                int colon = m.indexOf(':');
+                int n = Integer.parseInt(m.substring(0, colon));
+                if (n > 0) {
+                    n += newLine - line;
+                }
+                sb.append(n).append(m.substring(colon));
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Compute the key of a function.
+     * @param source source lines of the function
+     * @param resolved the function unparsed after name analysis
+     * @param structs all struct definitions, unparsed
+     */
+    public String key(String source, String resolved, String structs) {
+        MessageDigest md = sha256();
+        for (String part : new String[] {salt, source, resolved, structs}) {
+            byte[] b = part.getBytes(StandardCharsets.UTF_8);
+            md.update((byte)(b.length >>> 24));
+            md.update((byte)(b.length >>> 16));
+            md.update((byte)(b.length >>> 8));
+            md.update((byte)b.length);
+            md.update(b);
+        }
+        return hex(md.digest());
+    }
+
+    /**
+     * Return the entry for key, or null if there is none (or it cannot be
+     * read).
+     */
+    public Entry lookup(String key) {
+        Path file = dir.resolve(key + ".fn");
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                 new BufferedInputStream(Files.newInputStream(file)))) {
+            int line = in.readInt();
+            String msgs = readString(in);
+            String code = in.readBoolean() ? readString(in) : null;
+            int n = in.readInt();
+            Map<String, String> strings = new LinkedHashMap<String, String>();
+            for (int k = 0; k < n; k++) {
+                String strLit = readString(in);
+                strings.put(strLit, readString(in));
+            }
+            try {
+                Files.setLastModifiedTime(file,
+                    FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException ex) {
+                // evicted meanwhile; we already have the contents
+            }
+            return new Entry(line, msgs, code, strings);
+        } catch (IOException ex) {
+            return null;  // treat a damaged entry as a miss
+        }
+    }
+
+    /**
+     * Store an entry for key. The file is written under a temporary name
+     * and then renamed, so concurrent compilers never see a partial entry.
+     * Failures are ignored; the cache is only an optimization.
+     */
+    public void store(String key, Entry e) {
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(dir, key, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(e.line);
+                writeString(out, e.msgs);
+                out.writeBoolean(e.code != null);
+                if (e.code != null) {
+                    writeString(out, e.code);
+                }
+                out.writeInt(e.strings.size());
+                for (Map.Entry<String, String> s : e.strings.entrySet()) {
+                    writeString(out, s.getKey());
+                    writeString(out, s.getValue());
+                }
+            }
+            Files.move(tmp, dir.resolve(key + ".fn"),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ex2) {
+                    // nothing more to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Evict old entries if the cache is over its size bound. Failures are
+     * ignored.
+     */
+    public void evict() {
+        try {
+            evict(dir, "*.fn", maxBytes);
+        } catch (IOException ex) {
+            // tried again after the next compilation
+        }
+    }
+
+    /**
+     * Remove the stale temporary files of cache directory dir, then its
+     * least recently used entries (the files matching glob) until the
+     * total size of the entries and temporary files is at most maxBytes.
+     */
+    static void evict(Path dir, String glob, long maxBytes) throws IOException {
+        List<Path> files = new ArrayList<Path>();
+        long total = 0;
+        long stale = System.currentTimeMillis() - STALE_TMP;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.tmp")) {
+            for (Path f : ds) {
+                if (lastUsed(f) < stale) {
+                    try {
+                        Files.deleteIfExists(f);
+                        continue;
+                    } catch (IOException ex) {
+                        // counted below
+                    }
+                }
+                total += size(f);
+            }
+        }
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, glob)) {
+            for (Path f : ds) {
+                files.add(f);
+                total += size(f);
+            }
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+
+        Map<Path, Long> used = new HashMap<Path, Long>();
+        for (Path f : files) {
+            used.put(f, lastUsed(f));
+        }
+        files.sort(Comparator.comparing(used::get));
+        for (Path f : files) {
+            if (total <= maxBytes) {
+                break;
+            }
+            long n = size(f);
+            try {
+                Files.deleteIfExists(f);
+                total -= n;
+            } catch (IOException ex) {
+                // another compiler is evicting too
+            }
+        }
+    }
+
+    private static long size(Path f) {
+        try {
+            return Files.size(f);
+        } catch (IOException ex) {
+            return 0;
+        }
+    }
+
+    private static long lastUsed(Path f) {
+        try {
+            return Files.getLastModifiedTime(f).toMillis();
+        } catch (IOException ex) {
+            return 0;
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);  // required by every JVM
+        }
+    }
+
+    static String hex(byte[] b) {
+        StringBuilder sb = new StringBuilder(2 * b.length);
+        for (byte x : b) {
+            sb.append(Character.forDigit((x >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(x & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+        throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+}
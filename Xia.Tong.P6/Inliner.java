@@ -0,0 +1,262 @@
+import java.io.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Inliner
+ *
+ * Replaces calls to small functions that are not recursive by their body.
+ * It works in three steps:
+ *    - capture, before name analysis: the source of every function with
+ *      at most BUDGET nodes is unparsed (no names are linked yet,
+ *      so it parses again);
+ *    - plan, after name analysis: the call graph of the program is built,
+ *      and the captured functions that are not main and not on a cycle of
+ *      it are the ones to inline;
+ *    - inline, when a function is generated: every call in it to one of
+ *      those gets its own copy of the callee, parsed again from the
+ *      source. The formals and locals of the copy are name analyzed into
+ *      fresh slots below the locals of the caller, and calls in the copy
+ *      are inlined in the same way. CallExpNode generates the copy (see
+ *      FnDeclNode.genInline) instead of a jal.
+ * Each copy is made in the thread generating the caller and only read by
+ * it, so functions can still be generated in parallel. Not more than
+ * FN_BUDGET nodes are inlined into one function.
+ */
+class Inliner {
+    // largest function, in AST nodes (formals included), that is inlined
+    static final int BUDGET = 40;
+    // most AST nodes inlined into one function
+    static final int FN_BUDGET = 400;
+
+    // parses a program; set by P6, since the parser is built after the
+    // AST classes (null: nothing is inlined)
+    static Function<String, ProgramNode> parse = null;
+
+    private static class Callee {
+        String text;            // unparsed source
+        int size;               // nodes of the function
+    }
+
+    // captured functions, by decl and then (once linked) by symbol
+    private static Map<FnDeclNode, Callee> small =
+        new IdentityHashMap<FnDeclNode, Callee>();
+    private static Map<FnSym, Callee> callees = new IdentityHashMap<FnSym, Callee>();
+    // functions called by each function, in order of the calls
+    private static Map<FnSym, Set<FnSym>> calls = new IdentityHashMap<FnSym, Set<FnSym>>();
+    // global scope the copies are name analyzed against
+    private static SymTable globals;
+
+    /**
+     * Take the source of the small functions of decls.
+     */
+    static void capture(DeclListNode decls) {
+        small.clear();
+        callees.clear();
+        calls.clear();
+        if (parse == null) {
+            return;
+        }
+        for (ASTnode decl : decls.children()) {
+            if (!(decl instanceof FnDeclNode)) {
+                continue;
+            }
+            int size = size(decl);
+            if (size > BUDGET) {
+                continue;
+            }
+            StringWriter text = new StringWriter();
+            PrintWriter p = new PrintWriter(text);
+            decl.unparse(p, 0);
+            p.flush();
+
+            Callee c = new Callee();
+            c.text = text.toString();
+            c.size = size;
+            small.put((FnDeclNode)decl, c);
+        }
+    }
+
+    /**
+     * Build the call graph of the name analyzed decls and decide which
+     * functions to inline. symTab is the global scope.
+     */
+    static void plan(DeclListNode decls, SymTable symTab) {
+        globals = symTab;
+        for (ASTnode decl : decls.children()) {
+            if (!(decl instanceof FnDeclNode)) {
+                continue;
+            }
+            TSym sym = ((IdNode)decl.children().get(1)).sym();
+            if (!(sym instanceof FnSym)) {
+                continue;   // multiply declared
+            }
+            Set<FnSym> out = new LinkedHashSet<FnSym>();
+            decl.walk(new ASTVisitor() {
+                public boolean enter(ASTnode node) {
+                    if (node instanceof CallExpNode) {
+                        TSym callee = ((IdNode)node.children().get(0)).sym();
+                        if (callee instanceof FnSym) {
+                            out.add((FnSym)callee);
+                        }
+                    }
+                    return true;
+                }
+            });
+            calls.put((FnSym)sym, out);
+            Callee c = small.get(decl);
+            if (c != null && !((IdNode)decl.children().get(1)).isMain()) {
+                callees.put((FnSym)sym, c);
+            }
+        }
+        small.clear();
+        callees.keySet().removeAll(onCycles());
+    }
+
+    /**
+     * Return the functions that may be on a cycle of the call graph: those
+     * left when functions that call nothing left, and then functions that
+     * nothing left calls, are taken away until none is.
+     */
+    private static Set<FnSym> onCycles() {
+        Set<FnSym> left = Collections.newSetFromMap(new IdentityHashMap<FnSym, Boolean>());
+        left.addAll(calls.keySet());
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            Set<FnSym> called = Collections.newSetFromMap(new IdentityHashMap<FnSym, Boolean>());
+            for (FnSym f : left) {
+                for (FnSym g : calls.get(f)) {
+                    if (left.contains(g)) {
+                        called.add(g);
+                    }
+                }
+            }
+            Iterator<FnSym> it = left.iterator();
+            while (it.hasNext()) {
+                FnSym f = it.next();
+                boolean calling = false;
+                for (FnSym g : calls.get(f)) {
+                    calling |= left.contains(g);
+                }
+                if (!calling || !called.contains(f)) {
+                    it.remove();
+                    changed = true;
+                }
+            }
+        }
+        return left;
+    }
+
+    /**
+     * Return the source of the functions that may be inlined into fn,
+     * directly or through other inlined functions; the code of fn depends
+     * on it as well as on the source of fn.
+     */
+    static String sources(FnDeclNode fn) {
+        TSym sym = ((IdNode)fn.children().get(1)).sym();
+        if (callees.isEmpty() || !calls.containsKey(sym)) {
+            return "";
+        }
+        StringBuilder text = new StringBuilder();
+        Set<FnSym> seen = Collections.newSetFromMap(new IdentityHashMap<FnSym, Boolean>());
+        Deque<FnSym> todo = new ArrayDeque<FnSym>(calls.get(sym));
+        while (!todo.isEmpty()) {
+            FnSym f = todo.pop();
+            Callee c = callees.get(f);
+            if (c != null && seen.add(f)) {
+                text.append(c.text);
+                todo.addAll(calls.get(f));
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Inline the calls in body, the body of the function with symbol sym,
+     * after its locals have been laid out; the local size of sym grows by
+     * the slots the copies take.
+     */
+    static void inline(FnSym sym, FnBodyNode body) {
+        if (callees.isEmpty()) {
+            return;
+        }
+        // {bottom of the frame, budget left}
+        int[] state = {-(sym.getParamSize() + 8) - sym.getLocalSize(), FN_BUDGET};
+        inlineCalls(body, state);
+        sym.setLocalSize(-(sym.getParamSize() + 8) - state[0]);
+    }
+
+    private static void inlineCalls(ASTnode tree, int[] state) {
+        List<CallExpNode> sites = new ArrayList<CallExpNode>();
+        tree.walk(new ASTVisitor() {
+            public boolean enter(ASTnode node) {
+                if (node instanceof CallExpNode
+                    && callees.containsKey(((IdNode)node.children().get(0)).sym())) {
+                    sites.add((CallExpNode)node);
+                }
+                return true;
+            }
+        });
+
+        for (CallExpNode site : sites) {
+            Callee c = callees.get(((IdNode)site.children().get(0)).sym());
+            if (c.size > state[1]) {
+                continue;
+            }
+            state[1] -= c.size;
+            FnDeclNode copy = copy(c);
+            state[0] = copy.nameAnalysisInline(new SymTable(globals), state[0],
+                                               leavesValues(copy));
+            copy.typeCheck();
+            inlineCalls(copy, state);
+            site.setInline(copy);
+        }
+    }
+
+    /**
+     * Parse a new copy of callee c.
+     */
+    private static FnDeclNode copy(Callee c) {
+        ASTnode decls = parse.apply(c.text).children().get(0);
+        FnDeclNode copy = (FnDeclNode)decls.children().get(0);
+
+        // a return at the end does not need to branch to the end
+        List<? extends ASTnode> kids = copy.children().get(3).children();
+        List<? extends ASTnode> stmts = kids.get(kids.size() - 1).children();
+        if (!stmts.isEmpty() && stmts.get(stmts.size() - 1) instanceof ReturnStmtNode) {
+            ((ReturnStmtNode)stmts.get(stmts.size() - 1)).setLast();
+        }
+        return copy;
+    }
+
+    /**
+     * Does fn have statements that leave a value on the stack (the exit
+     * code of a function drops them, the end of an inlined copy does not)?
+     */
+    private static boolean leavesValues(FnDeclNode fn) {
+        boolean[] leaves = {false};
+        fn.walk(new ASTVisitor() {
+            public boolean enter(ASTnode node) {
+                leaves[0] |= node instanceof AssignStmtNode
+                    || node instanceof PostIncStmtNode
+                    || node instanceof PostDecStmtNode;
+                return !leaves[0] && !(node instanceof ExpNode);
+            }
+        });
+        return leaves[0];
+    }
+
+    /**
+     * Return the number of nodes of tree, or BUDGET + 1 if it is more.
+     */
+    private static int size(ASTnode tree) {
+        int[] n = {0};
+        tree.walk(new ASTVisitor() {
+            public boolean enter(ASTnode node) {
+                return ++n[0] <= BUDGET;
+            }
+        });
+        return Math.min(n[0], BUDGET + 1);
+    }
+}
@@ -0,0 +1,153 @@
+import java.util.*;
+
+/**
+ * LocalValues
+ *
+ * Local value numbering for the basic block being generated. Every value
+ * a pure expression (ids, field accesses, int literals, + - * / and unary
+ * minus) can have gets a number: a variable location has the number of
+ * the value last stored in it, and an operation on numbered values has
+ * one number however often it is written. A value loaded or computed is
+ * put in one of the registers $t2..$t9 instead of $t0, which costs
+ * nothing, and an expression whose number is still in one of them is
+ * not loaded or computed again: the register is pushed.
+ *
+ * A store gives its location the number of the value stored, so that
+ * after x = a * b reading x reuses a * b. Registers are taken over least
+ * recently used first. Everything is forgotten at a label, a branch or a
+ * call (the callee uses the same registers), which Codegen reports by
+ * calling clear.
+ *
+ * The table is per thread, like the buffers of Codegen, so functions can
+ * be generated in parallel.
+ */
+class LocalValues {
+    // registers that keep values; nothing else in the generated code
+    // uses them
+    private static final String[] REGS =
+        {"$t2", "$t3", "$t4", "$t5", "$t6", "$t7", "$t8", "$t9"};
+
+    private static class Table {
+        // location (as in an lw) -> number of the value it holds
+        Map<String, Integer> locs = new HashMap<String, Integer>();
+        // operation and numbers of its operands -> number of the result
+        Map<String, Integer> ops = new HashMap<String, Integer>();
+        // numbers of the expressions looked up since the last store
+        Map<ExpNode, Integer> memo = new IdentityHashMap<ExpNode, Integer>();
+        int numbers = 0;
+        int[] held = new int[REGS.length];      // number in each register
+        long[] used = new long[REGS.length];    // when each was last used
+        long clock = 0;
+
+        Table() {
+            Arrays.fill(held, -1);
+        }
+    }
+
+    private static final ThreadLocal<Table> table =
+        ThreadLocal.withInitial(Table::new);
+
+    /**
+     * Forget all values (at a label, branch or call).
+     */
+    static void clear() {
+        table.set(new Table());
+    }
+
+    /**
+     * Return the number of the value of e, or null if e is not pure.
+     */
+    static Integer valueOf(ExpNode e) {
+        Table t = table.get();
+        if (t.memo.containsKey(e)) {
+            return t.memo.get(e);
+        }
+        Integer vn = e.valueNumber();
+        t.memo.put(e, vn);
+        return vn;
+    }
+
+    /**
+     * Return the number of the value held in location loc.
+     */
+    static Integer load(String loc) {
+        Table t = table.get();
+        Integer vn = t.locs.get(loc);
+        if (vn == null) {
+            vn = t.numbers++;
+            t.locs.put(loc, vn);
+        }
+        return vn;
+    }
+
+    /**
+     * Return the number of the result of op on the values numbered vns,
+     * or null if one of them is null. If commutative the order of the
+     * operands does not matter.
+     */
+    static Integer number(String op, boolean commutative, Integer... vns) {
+        for (Integer vn : vns) {
+            if (vn == null) {
+                return null;
+            }
+        }
+        if (commutative && vns.length == 2 && vns[0] > vns[1]) {
+            vns = new Integer[] {vns[1], vns[0]};
+        }
+        Table t = table.get();
+        String key = op + " " + Arrays.toString(vns);
+        Integer vn = t.ops.get(key);
+        if (vn == null) {
+            vn = t.numbers++;
+            t.ops.put(key, vn);
+        }
+        return vn;
+    }
+
+    /**
+     * Record a store to location loc of the value numbered vn (null if
+     * not known).
+     */
+    static void store(String loc, Integer vn) {
+        Table t = table.get();
+        t.locs.put(loc, vn != null ? vn : t.numbers++);
+        t.memo.clear();
+    }
+
+    /**
+     * Return the register holding the value numbered vn, or null.
+     */
+    static String register(Integer vn) {
+        if (vn == null) {
+            return null;
+        }
+        Table t = table.get();
+        for (int k = 0; k < REGS.length; k++) {
+            if (t.held[k] == vn) {
+                t.used[k] = ++t.clock;
+                return REGS[k];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the register to put the value numbered vn in: the least
+     * recently used one, or $t0 if vn is null.
+     */
+    static String allocate(Integer vn) {
+        if (vn == null) {
+            return Codegen.T0;
+        }
+        Table t = table.get();
+        int k = 0;
+        for (int j = 1; j < REGS.length; j++) {
+            if (t.used[j] < t.used[k]) {
+                k = j;
+            }
+        }
+        t.held[k] = vn;
+        t.used[k] = ++t.clock;
+        return REGS[k];
+    }
+}
@@ -0,0 +1,340 @@
+import java.util.*;
+
+/**
+ * Loops
+ *
+ * Loop-invariant code motion and strength reduction for while loops. The
+ * loops are the while statements of the AST, so no control flow graph is
+ * needed to find them. Only loops without calls are done (a call inlined
+ * by Inliner is not one): a value is kept in one of the registers
+ * $s0..$s7 for the whole loop, and no function saves them, so none may be
+ * called while they are live. For the same reason a function never calls
+ * out with one of them live, so it need not save them for its caller
+ * either.
+ *
+ * Before the loop (in its preheader) the following are computed once into
+ * a register, and each place in the loop they are written just pushes it:
+ *    - the biggest invariant expressions: ids, field accesses, + - * /
+ *      and unary minus of variables not written in the loop and int
+ *      literals; a division only by a literal other than 0, since the
+ *      loop may not run at all;
+ *    - products i * k and k * i of an induction variable i and a literal
+ *      k, where i is an induction variable if every store to it in the
+ *      loop is i++, i--, i = i + c, i = c + i or i = i - c for a literal
+ *      c. After each of these stores the register gets c * k added.
+ * Expressions that are the same (same operators on the same variables
+ * and literals) share a register. Inner loops take the registers the
+ * loops around them leave free.
+ *
+ * Each loop done is walked twice, inner loops included, so a loop inside
+ * more than MAX_DEPTH others is left alone: the time spent stays linear
+ * in the size of the function however deep the loops nest (see
+ * ASTnode.maxDepth).
+ */
+class Loops {
+    private static final String[] REGS =
+        {"$s0", "$s1", "$s2", "$s3", "$s4", "$s5", "$s6", "$s7"};
+    // deepest loop done, counting the loops around it
+    static final int MAX_DEPTH = 8;
+
+    private static class State {
+        // expression -> register holding its value
+        Map<ExpNode, String> hoisted = new IdentityHashMap<ExpNode, String>();
+        // store to an induction variable -> {register, amount} to add
+        // to each product kept for it
+        Map<ASTnode, List<String[]>> updates = new IdentityHashMap<ASTnode, List<String[]>>();
+        int next = 0;   // first free register
+        int depth = 0;  // loops entered and not left
+    }
+
+    private static final ThreadLocal<State> state =
+        ThreadLocal.withInitial(State::new);
+
+    /**
+     * Generate the preheader of the loop whose condition and body are the
+     * children of loop, and set up the registers used in it. Returns what
+     * leave needs to give them back after the loop.
+     */
+    static List<ExpNode> enter(ASTnode loop) {
+        State st = state.get();
+        List<ExpNode> taken = new ArrayList<ExpNode>();
+        if (++st.depth > MAX_DEPTH || st.next == REGS.length) {
+            return taken;
+        }
+        Set<TSym> written = Collections.newSetFromMap(new IdentityHashMap<TSym, Boolean>());
+        Map<TSym, Map<ASTnode, Integer>> steps = new IdentityHashMap<TSym, Map<ASTnode, Integer>>();
+        if (!scan(loop, written, steps)) {
+            return taken;
+        }
+
+        Map<String, String> regs = new HashMap<String, String>();   // key -> register
+        List<ExpNode> firsts = new ArrayList<ExpNode>();
+        loop.walk(new ASTVisitor() {
+            public boolean enter(ASTnode node) {
+                if (node instanceof VarDeclNode || st.hoisted.containsKey(node)) {
+                    return false;   // or kept by a loop around this one
+                }
+                if (!(node instanceof ExpNode)) {
+                    return true;
+                }
+                ExpNode e = (ExpNode)node;
+                IdNode iv = inductionTimes(e, steps);
+                if (iv == null && (e instanceof IntLitNode || !invariant(e, written))) {
+                    // the id of a field is not a variable
+                    return !(node instanceof DotAccessExpNode);
+                }
+                String key = key(e);
+                String reg = regs.get(key);
+                if (reg == null) {
+                    if (st.next == REGS.length) {
+                        return false;
+                    }
+                    reg = REGS[st.next++];
+                    regs.put(key, reg);
+                    firsts.add(e);
+                    if (iv != null) {
+                        int k = literal(e, iv);
+                        for (Map.Entry<ASTnode, Integer> step : steps.get(iv.sym()).entrySet()) {
+                            st.updates.computeIfAbsent(step.getKey(), s -> new ArrayList<String[]>())
+                                      .add(new String[] {reg, "" + step.getValue() * k});
+                        }
+                    }
+                }
+                taken.add(e);
+                return false;
+            }
+        });
+
+        // compute each value before the loop; the nodes are only mapped
+        // afterwards, so that they generate the real code here
+        for (ExpNode e : firsts) {
+            e.codeGen();
+            Codegen.genPop(regs.get(key(e)));
+        }
+        for (ExpNode e : taken) {
+            st.hoisted.put(e, regs.get(key(e)));
+        }
+        return taken;
+    }
+
+    /**
+     * Give back the registers of a loop after it, taken as returned by
+     * enter.
+     */
+    static void leave(List<ExpNode> taken) {
+        State st = state.get();
+        st.depth--;
+        Set<String> regs = new HashSet<String>();
+        for (ExpNode e : taken) {
+            regs.add(st.hoisted.remove(e));
+        }
+        st.next -= regs.size();
+        for (List<String[]> adds : st.updates.values()) {
+            adds.removeIf(add -> regs.contains(add[0]));
+        }
+        st.updates.values().removeIf(List::isEmpty);
+    }
+
+    /**
+     * Return the register e is kept in, or null.
+     */
+    static String register(ExpNode e) {
+        return state.get().hoisted.get(e);
+    }
+
+    /**
+     * If e is kept in a register, push the register and return true.
+     */
+    static boolean genHoisted(ExpNode e) {
+        String reg = register(e);
+        if (reg == null) {
+            return false;
+        }
+        Codegen.genPush(reg);
+        return true;
+    }
+
+    /**
+     * Generate what has to follow the store node (an assignment, ++ or --):
+     * if it steps an induction variable, the products kept for it are
+     * stepped as well.
+     */
+    static void genUpdates(ASTnode node) {
+        List<String[]> adds = state.get().updates.get(node);
+        if (adds == null) {
+            return;
+        }
+        for (String[] add : adds) {
+            Codegen.generate("addu", add[0], add[0], add[1]);
+        }
+    }
+
+    /**
+     * Find the variables written in tree, and for each the stores to it
+     * with the step they make if all of them are steps. Returns false if
+     * tree has a call in it.
+     */
+    private static boolean scan(ASTnode tree, Set<TSym> written,
+                                Map<TSym, Map<ASTnode, Integer>> steps) {
+        Set<TSym> other = Collections.newSetFromMap(new IdentityHashMap<TSym, Boolean>());
+        boolean[] calls = {false};
+        tree.walk(new ASTVisitor() {
+            public boolean enter(ASTnode node) {
+                if (node instanceof CallExpNode) {
+                    // an inlined call is no call, but its copy stores
+                    FnDeclNode copy = ((CallExpNode)node).inlined();
+                    if (copy == null) {
+                        calls[0] = true;
+                    } else {
+                        copy.walk(this);
+                    }
+                } else if (node instanceof VarDeclNode || node instanceof FormalDeclNode) {
+                    TSym sym = ((IdNode)node.children().get(1)).sym();
+                    written.add(sym);
+                    other.add(sym);
+                    return false;
+                }
+                ExpNode target = null;
+                Integer step = null;
+                if (node instanceof PostIncStmtNode || node instanceof PostDecStmtNode) {
+                    target = (ExpNode)node.children().get(0);
+                    step = node instanceof PostIncStmtNode ? 1 : -1;
+                } else if (node instanceof AssignNode || node instanceof ReadStmtNode) {
+                    target = (ExpNode)node.children().get(0);
+                    step = node instanceof AssignNode ? step((AssignNode)node) : null;
+                }
+                if (target != null) {
+                    TSym sym = root(target).sym();
+                    written.add(sym);
+                    if (step == null || !(target instanceof IdNode)) {
+                        other.add(sym);
+                    } else {
+                        steps.computeIfAbsent(sym, s -> new IdentityHashMap<ASTnode, Integer>())
+                             .put(node, step);
+                    }
+                }
+                return !calls[0];
+            }
+        });
+        steps.keySet().removeAll(other);
+        return !calls[0];
+    }
+
+    /**
+     * Return c if assign is i = i + c, i = c + i or i = i - c for a
+     * literal c (-c for the last), else null.
+     */
+    private static Integer step(AssignNode assign) {
+        List<? extends ASTnode> kids = assign.children();
+        if (!(kids.get(0) instanceof IdNode)) {
+            return null;
+        }
+        TSym sym = ((IdNode)kids.get(0)).sym();
+        ASTnode exp = kids.get(1);
+        if (!(exp instanceof PlusNode) && !(exp instanceof MinusNode)) {
+            return null;
+        }
+        ASTnode left = exp.children().get(0);
+        ASTnode right = exp.children().get(1);
+        if (exp instanceof PlusNode && right instanceof IdNode && left instanceof IntLitNode) {
+            ASTnode t = left;
+            left = right;
+            right = t;
+        }
+        if (!(left instanceof IdNode) || ((IdNode)left).sym() != sym
+            || !(right instanceof IntLitNode)) {
+            return null;
+        }
+        int c = ((IntLitNode)right).value();
+        return exp instanceof PlusNode ? c : -c;
+    }
+
+    /**
+     * Return the induction variable i if e is i * k or k * i for a literal
+     * k, else null.
+     */
+    private static IdNode inductionTimes(ExpNode e, Map<TSym, Map<ASTnode, Integer>> steps) {
+        if (!(e instanceof TimesNode)) {
+            return null;
+        }
+        for (ASTnode kid : e.children()) {
+            if (kid instanceof IdNode && steps.containsKey(((IdNode)kid).sym())
+                && literal(e, (IdNode)kid) != null) {
+                return (IdNode)kid;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the literal operand of product e, the other one being iv.
+     */
+    private static Integer literal(ExpNode e, IdNode iv) {
+        for (ASTnode kid : e.children()) {
+            if (kid != iv && kid instanceof IntLitNode) {
+                return ((IntLitNode)kid).value();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Is e invariant: made of ids and field accesses of variables not in
+     * written, int literals, + - * / and unary minus, and not dividing by
+     * anything but a literal other than 0?
+     */
+    private static boolean invariant(ExpNode e, Set<TSym> written) {
+        if (e instanceof IntLitNode) {
+            return true;
+        }
+        if (e instanceof IdNode || e instanceof DotAccessExpNode) {
+            TSym sym = root(e).sym();
+            return sym != null && !written.contains(sym);
+        }
+        if (e instanceof DivideNode) {
+            ASTnode divisor = e.children().get(1);
+            if (!(divisor instanceof IntLitNode) || ((IntLitNode)divisor).value() == 0) {
+                return false;
+            }
+        }
+        if (e instanceof ArithmeticExpNode || e instanceof UnaryMinusNode) {
+            for (ASTnode kid : e.children()) {
+                if (!invariant((ExpNode)kid, written)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return a string that is the same for the same expressions.
+     */
+    private static String key(ExpNode e) {
+        if (e instanceof IntLitNode) {
+            return "" + ((IntLitNode)e).value();
+        }
+        if (e instanceof IdNode) {
+            return ((IdNode)e).location(0);
+        }
+        if (e instanceof DotAccessExpNode) {
+            return ((DotAccessExpNode)e).location();
+        }
+        StringBuilder key = new StringBuilder(e.getClass().getName()).append('(');
+        for (ASTnode kid : e.children()) {
+            key.append(key((ExpNode)kid)).append(' ');
+        }
+        return key.append(')').toString();
+    }
+
+    /**
+     * Return the variable a location (an id or a dot-access) is in.
+     */
+    private static IdNode root(ExpNode loc) {
+        while (loc instanceof DotAccessExpNode) {
+            loc = (ExpNode)loc.children().get(0);
+        }
+        return (IdNode)loc;
+    }
+}
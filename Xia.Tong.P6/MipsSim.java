@@ -0,0 +1,450 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * MipsSim
+ *
+ * Runs a .s file written by P6 and counts the cycles it takes on a
+ * classic 5-stage MIPS pipeline with forwarding:
+ *    - each instruction of the file issues in one cycle (pseudo
+ *      instructions count as one);
+ *    - an instruction reading the register loaded by the lw just before
+ *      it waits one cycle;
+ *    - mul takes MUL_CYCLES cycles, and div and rem DIV_CYCLES, as on
+ *      an R3000 (the mflo that follows the mult or div waits for it);
+ *    - a branch or jump is followed by one delay slot. If the file says
+ *      .set noreorder the instruction after the branch is executed in
+ *      the slot, as with spim -delayed_branches; otherwise the assembler
+ *      is taken to have put a nop there, which costs a cycle.
+ * With .set noreorder loads are delayed too, and an instruction reading
+ * the register loaded by the lw just before it is an error.
+ *
+ * The stack is STACK_BYTES long; moving $sp past it is an error, and the
+ * most of it used is counted.
+ *
+ * Usage: java MipsSim file.s [ints read by cin ...]
+ * The output of the program goes to stdout, the counts to stderr.
+ */
+class MipsSim {
+    private static final String[] REGS = {
+        "$zero", "$at", "$v0", "$v1", "$a0", "$a1", "$a2", "$a3",
+        "$t0", "$t1", "$t2", "$t3", "$t4", "$t5", "$t6", "$t7",
+        "$s0", "$s1", "$s2", "$s3", "$s4", "$s5", "$s6", "$s7",
+        "$t8", "$t9", "$k0", "$k1", "$gp", "$sp", "$fp", "$ra"};
+    private static final int SP = 29;
+    private static final int RA = 31;
+    private static final int TEXT = 0x00400000;
+    private static final int DATA = 0x10010000;
+    private static final int MUL_CYCLES = 12;
+    private static final int DIV_CYCLES = 35;
+    private static final int STACK_TOP = 0x7ffffffc;
+    private static final int STACK_BYTES = 1 << 20;
+
+    private static class Insn {
+        String op;
+        int line;
+        int rd = -1;        // register written
+        int rs = -1;        // registers read
+        int rt = -1;
+        int imm;            // immediate, offset or address
+        boolean hasImm;     // the last operand is imm, not rt
+        String target;      // label of a branch, jump or address
+        boolean load;
+        boolean branch;
+    }
+
+    private List<Insn> text = new ArrayList<Insn>();
+    private Map<String, Integer> labels = new HashMap<String, Integer>();
+    private Map<Integer, Integer> mem = new HashMap<Integer, Integer>();
+    private int dataEnd = DATA;
+    private boolean delayed = false;
+
+    private int[] reg = new int[32];
+    private long insns = 0;
+    private long cycles = 0;
+    private long loadStalls = 0;
+    private long slotCycles = 0;    // delay slots holding a nop
+    private int lowestSp = STACK_TOP;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: java MipsSim file.s [input ...]");
+            System.exit(-1);
+        }
+        MipsSim sim = new MipsSim();
+        sim.load(Files.readAllLines(Paths.get(args[0])));
+        Deque<Integer> input = new ArrayDeque<Integer>();
+        for (int k = 1; k < args.length; k++) {
+            input.add(Integer.parseInt(args[k]));
+        }
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out), false);
+        try {
+            sim.run(input, out);
+        } finally {
+            out.flush();
+        }
+        System.err.printf("%s: %d instructions, %d cycles (%d load-use stalls, "
+                          + "%d empty delay slots), %d bytes of stack%s%n",
+                          args[0], sim.insns, sim.cycles, sim.loadStalls,
+                          sim.slotCycles, STACK_TOP - sim.lowestSp,
+                          sim.delayed ? ", delayed branches" : "");
+    }
+
+    /**
+     * Assemble the lines of a .s file.
+     */
+    private void load(List<String> lines) {
+        boolean inText = true;
+        List<String> pending = new ArrayList<String>();
+        List<Integer> pendingData = new ArrayList<Integer>();
+        for (int n = 0; n < lines.size(); n++) {
+            String s = lines.get(n);
+            int hash = s.indexOf('#', s.lastIndexOf('"') + 1);
+            if (hash >= 0) {
+                s = s.substring(0, hash);
+            }
+            s = s.trim();
+            while (true) {
+                int colon = s.indexOf(':');
+                if (colon < 0 || s.startsWith(".ascii") || s.indexOf('"') >= 0 && s.indexOf('"') < colon) {
+                    break;
+                }
+                String label = s.substring(0, colon).trim();
+                if (inText) {
+                    labels.put(label, TEXT + 4 * text.size());
+                } else {
+                    pending.add(label);
+                }
+                s = s.substring(colon + 1).trim();
+            }
+            if (s.isEmpty()) {
+                continue;
+            }
+            String[] parts = s.split("\\s+", 2);
+            String op = parts[0];
+            String rest = parts.length > 1 ? parts[1].trim() : "";
+            if (op.equals(".text")) {
+                inText = true;
+            } else if (op.equals(".data")) {
+                inText = false;
+            } else if (op.equals(".set")) {
+                delayed |= rest.equals("noreorder");
+            } else if (op.equals(".align")) {
+                int a = 1 << Integer.parseInt(rest);
+                dataEnd = (dataEnd + a - 1) / a * a;
+            } else if (op.startsWith(".")) {
+                for (String label : pending) {
+                    labels.put(label, dataEnd);
+                }
+                pending.clear();
+                if (op.equals(".space")) {
+                    dataEnd += Integer.parseInt(rest);
+                } else if (op.equals(".word")) {
+                    for (String w : rest.split(",")) {
+                        store(dataEnd, Integer.parseInt(w.trim()));
+                        dataEnd += 4;
+                    }
+                } else if (op.equals(".ascii") || op.equals(".asciiz")) {
+                    for (byte b : unquote(rest)) {
+                        storeByte(dataEnd++, b);
+                    }
+                    if (op.equals(".asciiz")) {
+                        storeByte(dataEnd++, (byte)0);
+                    }
+                }
+            } else {
+                text.add(decode(op, rest, n + 1));
+            }
+        }
+    }
+
+    private Insn decode(String op, String rest, int line) {
+        Insn i = new Insn();
+        i.op = op;
+        i.line = line;
+        String[] a = rest.isEmpty() ? new String[0] : rest.split(",");
+        for (int k = 0; k < a.length; k++) {
+            a[k] = a[k].trim();
+        }
+        switch (op) {
+        case "lw": case "sw": case "la":
+            i.load = op.equals("lw");
+            if (op.equals("sw")) {
+                i.rt = reg(a[0]);
+            } else {
+                i.rd = reg(a[0]);
+            }
+            int paren = a[1].indexOf('(');
+            if (paren >= 0) {
+                i.rs = reg(a[1].substring(paren + 1, a[1].indexOf(')')));
+                i.imm = paren == 0 ? 0 : Integer.parseInt(a[1].substring(0, paren));
+            } else {
+                int plus = a[1].indexOf('+');
+                i.target = plus < 0 ? a[1] : a[1].substring(0, plus);
+                i.imm = plus < 0 ? 0 : Integer.parseInt(a[1].substring(plus + 1));
+            }
+            break;
+        case "li":
+            i.rd = reg(a[0]);
+            i.imm = (int)Long.parseLong(a[1]);
+            break;
+        case "b": case "j": case "jal":
+            i.branch = true;
+            i.target = a[0];
+            if (op.equals("jal")) {
+                i.rd = RA;
+            }
+            break;
+        case "jr":
+            i.branch = true;
+            i.rs = reg(a[0]);
+            break;
+        case "beqz": case "bnez": case "bltz": case "bgtz": case "blez": case "bgez":
+            i.branch = true;
+            i.rs = reg(a[0]);
+            i.target = a[1];
+            break;
+        case "beq": case "bne": case "blt": case "bgt": case "ble": case "bge":
+            i.branch = true;
+            i.rs = reg(a[0]);
+            operand(i, a[1]);
+            i.target = a[2];
+            break;
+        case "syscall": case "nop":
+            break;
+        default:
+            if (a.length < 2) {
+                throw new IllegalArgumentException("line " + line + ": cannot run " + op);
+            }
+            i.rd = reg(a[0]);
+            i.rs = reg(a[1]);
+            if (a.length > 2) {
+                operand(i, a[2]);
+            }
+        }
+        return i;
+    }
+
+    private void operand(Insn i, String a) {
+        if (a.startsWith("$")) {
+            i.rt = reg(a);
+        } else {
+            i.imm = (int)Long.parseLong(a);
+            i.hasImm = true;
+        }
+    }
+
+    private static int reg(String name) {
+        for (int k = 0; k < REGS.length; k++) {
+            if (REGS[k].equals(name)) {
+                return k;
+            }
+        }
+        if (name.equals("$0")) {
+            return 0;
+        }
+        throw new IllegalArgumentException("bad register " + name);
+    }
+
+    /**
+     * Run from main until the exit syscall.
+     */
+    private void run(Deque<Integer> input, PrintStream out) {
+        reg[SP] = STACK_TOP;
+        int pc = (label("main") - TEXT) / 4;
+        Insn prev = null;
+        int slotOf = -1;    // target after a delay slot, or -1
+        while (true) {
+            if (pc < 0 || pc >= text.size()) {
+                throw new IllegalStateException("pc out of text: " + pc);
+            }
+            Insn i = text.get(pc);
+            insns++;
+            cycles++;
+            if (prev != null && prev.load && prev.rd > 0
+                && (i.rs == prev.rd || i.rt == prev.rd || (i.op.equals("syscall")
+                                                        && (prev.rd == 2 || prev.rd == 4)))) {
+                if (delayed) {
+                    throw new IllegalStateException("line " + i.line
+                        + ": uses the register loaded just before it");
+                }
+                cycles++;
+                loadStalls++;
+            }
+            if (slotOf >= 0 && i.branch) {
+                throw new IllegalStateException("line " + i.line + ": branch in delay slot");
+            }
+            if (slotOf >= 0 && i.op.equals("nop")) {
+                slotCycles++;
+            }
+            prev = i;
+
+            int next = pc + 1;
+            int target = -1;
+            int s = i.rs >= 0 ? reg[i.rs] : 0;
+            int t = i.hasImm ? i.imm : i.rt >= 0 ? reg[i.rt] : 0;
+            switch (i.op) {
+            case "lw": reg(i.rd, load(address(i))); break;
+            case "sw": store(address(i), reg[i.rt]); break;
+            case "la": reg(i.rd, address(i)); break;
+            case "li": reg(i.rd, i.imm); break;
+            case "move": reg(i.rd, s); break;
+            case "neg": reg(i.rd, -s); break;
+            case "not": reg(i.rd, ~s); break;
+            case "add": case "addu": case "addi": case "addiu": reg(i.rd, s + t); break;
+            case "sub": case "subu": reg(i.rd, s - t); break;
+            case "mul":
+                reg(i.rd, s * t);
+                cycles += MUL_CYCLES - 1;
+                break;
+            case "div":
+                reg(i.rd, s / t);
+                cycles += DIV_CYCLES - 1;
+                break;
+            case "rem":
+                reg(i.rd, s % t);
+                cycles += DIV_CYCLES - 1;
+                break;
+            case "and": case "andi": reg(i.rd, s & t); break;
+            case "or": case "ori": reg(i.rd, s | t); break;
+            case "xor": case "xori": reg(i.rd, s ^ t); break;
+            case "nor": reg(i.rd, ~(s | t)); break;
+            case "sll": reg(i.rd, s << t); break;
+            case "srl": reg(i.rd, s >>> t); break;
+            case "sra": reg(i.rd, s >> t); break;
+            case "slt": case "slti": reg(i.rd, s < t ? 1 : 0); break;
+            case "sltu": case "sltiu":
+                reg(i.rd, Integer.compareUnsigned(s, t) < 0 ? 1 : 0); break;
+            case "seq": reg(i.rd, s == t ? 1 : 0); break;
+            case "sne": reg(i.rd, s != t ? 1 : 0); break;
+            case "sgt": reg(i.rd, s > t ? 1 : 0); break;
+            case "sge": reg(i.rd, s >= t ? 1 : 0); break;
+            case "sle": reg(i.rd, s <= t ? 1 : 0); break;
+            case "b": case "j": target = label(i.target); break;
+            case "jal":
+                reg(RA, TEXT + 4 * (pc + (delayed ? 2 : 1)));
+                target = label(i.target);
+                break;
+            case "jr": target = s; break;
+            case "beq": if (s == t) target = label(i.target); break;
+            case "bne": if (s != t) target = label(i.target); break;
+            case "blt": if (s < t) target = label(i.target); break;
+            case "bgt": if (s > t) target = label(i.target); break;
+            case "ble": if (s <= t) target = label(i.target); break;
+            case "bge": if (s >= t) target = label(i.target); break;
+            case "beqz": if (s == 0) target = label(i.target); break;
+            case "bnez": if (s != 0) target = label(i.target); break;
+            case "bltz": if (s < 0) target = label(i.target); break;
+            case "bgtz": if (s > 0) target = label(i.target); break;
+            case "blez": if (s <= 0) target = label(i.target); break;
+            case "bgez": if (s >= 0) target = label(i.target); break;
+            case "nop": break;
+            case "syscall":
+                switch (reg[2]) {
+                case 1: out.print(reg[4]); break;
+                case 4: out.print(string(reg[4])); break;
+                case 5:
+                    reg[2] = input.isEmpty() ? 0 : input.remove();
+                    break;
+                case 10: return;
+                default:
+                    throw new IllegalStateException("line " + i.line + ": syscall " + reg[2]);
+                }
+                break;
+            default:
+                throw new IllegalStateException("line " + i.line + ": cannot run " + i.op);
+            }
+
+            if (slotOf >= 0) {
+                next = slotOf;
+                slotOf = -1;
+            } else if (i.branch) {
+                int to = target < 0 ? pc + (delayed ? 2 : 1) : (target - TEXT) / 4;
+                if (delayed) {
+                    slotOf = to;
+                } else {
+                    next = to;
+                    cycles++;
+                    slotCycles++;
+                }
+            }
+            pc = next;
+        }
+    }
+
+    private void reg(int r, int v) {
+        if (r == SP && v < lowestSp) {
+            if (v < STACK_TOP - STACK_BYTES) {
+                throw new IllegalStateException("stack overflow");
+            }
+            lowestSp = v;
+        }
+        if (r > 0) {
+            reg[r] = v;
+        }
+    }
+
+    private int label(String name) {
+        Integer a = labels.get(name);
+        if (a == null) {
+            throw new IllegalStateException("undefined label " + name);
+        }
+        return a;
+    }
+
+    private int address(Insn i) {
+        return (i.target != null ? label(i.target) : reg[i.rs]) + i.imm;
+    }
+
+    private int load(int addr) {
+        if ((addr & 3) != 0) {
+            throw new IllegalStateException("unaligned lw at " + Integer.toHexString(addr));
+        }
+        return mem.getOrDefault(addr, 0);
+    }
+
+    private void store(int addr, int v) {
+        if ((addr & 3) != 0) {
+            throw new IllegalStateException("unaligned sw at " + Integer.toHexString(addr));
+        }
+        mem.put(addr, v);
+    }
+
+    private void storeByte(int addr, byte b) {
+        int w = addr & ~3;
+        int shift = 8 * (addr & 3);
+        int v = mem.getOrDefault(w, 0);
+        mem.put(w, (v & ~(0xff << shift)) | ((b & 0xff) << shift));
+    }
+
+    private String string(int addr) {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int c = (mem.getOrDefault(addr & ~3, 0) >> (8 * (addr & 3))) & 0xff;
+            if (c == 0) {
+                return sb.toString();
+            }
+            sb.append((char)c);
+            addr++;
+        }
+    }
+
+    /**
+     * The bytes of a string literal of the assembler.
+     */
+    private static byte[] unquote(String lit) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        for (int k = 1; k < lit.length() - 1; k++) {
+            char c = lit.charAt(k);
+            if (c == '\\') {
+                c = lit.charAt(++k);
+                int e = "nt\"'?\\0".indexOf(c);
+                c = e < 0 ? c : "\n\t\"'?\\\0".charAt(e);
+            }
+            b.write(c);
+        }
+        return b.toByteArray();
+    }
+}
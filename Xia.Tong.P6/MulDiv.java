@@ -0,0 +1,166 @@
+import java.util.*;
+
+/**
+ * MulDiv
+ *
+ * Multiplication and division by an int literal without mul or div, which
+ * take many cycles on a MIPS core (12 and 35 on an R3000):
+ *    - x * k is written as a sum of shifts of x, one for each digit of k
+ *      in signed binary (non-adjacent form, so a run of ones such as 7 =
+ *      8 - 1 costs two shifts, not three). It is only done when that takes
+ *      at most MAX_INSNS instructions;
+ *    - x / k for k = 2^s or -2^s rounds toward zero like div: 2^s - 1 is
+ *      added to x when it is negative before it is shifted right
+ *      arithmetically, and the result is negated for -2^s. Other divisors
+ *      keep the div;
+ *    - x * 0 is 0, and x * -1 and x / -1 are -x. (x * 1 and x / 1 are x,
+ *      which the nodes see to themselves.)
+ * The operand is in a register when the code is generated, and $t1 and
+ * $v1 are used for the partial results.
+ */
+class MulDiv {
+    // longest sequence used for a multiplication
+    static final int MAX_INSNS = 5;
+
+    /**
+     * Return the value of e if it is an int literal or minus an int
+     * literal (as -8 is parsed), else null.
+     */
+    static Integer literal(ExpNode e) {
+        if (e instanceof UnaryMinusNode && e.children().get(0) instanceof IntLitNode) {
+            return -((IntLitNode)e.children().get(0)).value();
+        }
+        return e instanceof IntLitNode ? ((IntLitNode)e).value() : null;
+    }
+
+    /**
+     * Can x * k be generated by genTimes?
+     */
+    static boolean times(int k) {
+        return insns(digits(k)) <= MAX_INSNS;
+    }
+
+    /**
+     * Generate dst = src * k, for k such that times(k). dst may be src.
+     */
+    static void genTimes(String dst, String src, int k) {
+        List<int[]> digits = digits(k);
+        if (digits.isEmpty()) {
+            Codegen.generate("li", dst, "0");
+            return;
+        }
+        if (digits.size() == 1) {
+            int[] d = digits.get(0);
+            if (d[0] > 0) {
+                Codegen.generate("sll", dst, src, "" + d[0]);
+            }
+            if (d[1] < 0) {
+                Codegen.generate("neg", dst, d[0] > 0 ? dst : src);
+            } else if (d[0] == 0) {
+                Codegen.generate("move", dst, src);
+            }
+            return;
+        }
+
+        // the first term is a positive digit if there is one, so that
+        // it need not be negated
+        int[] first = digits.get(0);
+        for (int[] d : digits) {
+            if (d[1] > 0) {
+                first = d;
+                break;
+            }
+        }
+        digits.remove(first);
+        String acc = shifted(Codegen.T1, src, first[0]);
+        if (first[1] < 0) {
+            Codegen.generate("neg", Codegen.T1, acc);
+            acc = Codegen.T1;
+        }
+        for (int j = 0; j < digits.size(); j++) {
+            int[] d = digits.get(j);
+            String term = shifted(Codegen.V1, src, d[0]);
+            String to = j == digits.size() - 1 ? dst : Codegen.T1;
+            Codegen.generate(d[1] > 0 ? "addu" : "subu", to, acc, term);
+            acc = to;
+        }
+    }
+
+    /**
+     * Can x / k be generated by genDivide?
+     */
+    static boolean divide(int k) {
+        return k != 0 && Long.bitCount(Math.abs((long)k)) == 1;
+    }
+
+    /**
+     * Generate dst = src / k, for k such that divide(k). dst may be src.
+     */
+    static void genDivide(String dst, String src, int k) {
+        int s = Long.numberOfTrailingZeros(Math.abs((long)k));
+        if (s == 0) {
+            Codegen.generate("neg", dst, src);  // k is -1
+            return;
+        }
+        // $t1 = 2^s - 1 if src < 0, else 0
+        if (s == 1) {
+            Codegen.generate("srl", Codegen.T1, src, "31");
+        } else {
+            Codegen.generate("sra", Codegen.T1, src, "31");
+            Codegen.generate("srl", Codegen.T1, Codegen.T1, "" + (32 - s));
+        }
+        Codegen.generate("addu", Codegen.T1, src, Codegen.T1);
+        Codegen.generate("sra", dst, Codegen.T1, "" + s);
+        if (k < 0) {
+            Codegen.generate("neg", dst, dst);
+        }
+    }
+
+    /**
+     * Return the register holding src shifted left by n: src itself if n
+     * is 0, else reg after generating the shift into it.
+     */
+    private static String shifted(String reg, String src, int n) {
+        if (n == 0) {
+            return src;
+        }
+        Codegen.generate("sll", reg, src, "" + n);
+        return reg;
+    }
+
+    /**
+     * Return the nonzero digits of k in non-adjacent form, as {position,
+     * sign} from the lowest, taking k as a 32-bit pattern (a digit at
+     * position 32 is dropped, as it only adds a multiple of 2^32).
+     */
+    private static List<int[]> digits(int k) {
+        List<int[]> digits = new ArrayList<int[]>();
+        long n = k & 0xffffffffL;
+        for (int pos = 0; n != 0 && pos < 32; pos++) {
+            if ((n & 1) != 0) {
+                int sign = (n & 3) == 3 ? -1 : 1;
+                digits.add(new int[] {pos, sign});
+                n -= sign;
+            }
+            n >>= 1;
+        }
+        return digits;
+    }
+
+    /**
+     * Return the number of instructions genTimes takes for digits.
+     */
+    private static int insns(List<int[]> digits) {
+        if (digits.size() <= 1) {
+            return 1 + (digits.size() == 1 && digits.get(0)[0] > 0
+                        && digits.get(0)[1] < 0 ? 1 : 0);
+        }
+        boolean positive = false;
+        int n = digits.size() - 1;
+        for (int[] d : digits) {
+            n += d[0] > 0 ? 1 : 0;
+            positive |= d[1] > 0;
+        }
+        return positive ? n : n + 1;
+    }
+}
@@ -1,4 +1,9 @@
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
 
 import java_cup.runtime.*;
 
@@ -8,6 +13,34 @@ import java_cup.runtime.*;
  * There should be 2 command-line arguments:
  *    1. the file to be parsed
  *    2. the MIPS output file
+ * optionally followed by:
+ *    -j <n>    number of threads for the parallel passes (1 = serial)
+ *    -icache <dir>  reuse the results of unchanged functions from earlier
+ *              runs, kept in directory dir
+ *    -cache <dir>   reuse the whole result of an earlier compilation of
+ *              the same source, kept in directory dir
+ *    -cachesize <mb>  size bound of the -cache and of the -icache
+ *              directory (default 256)
+ *    -stream   compile each top-level declaration as soon as it is parsed
+ *              and then drop it, so that memory use does not grow with the
+ *              size of the program (names must be declared before use;
+ *              not with -icache or -cache)
+ *    -maxdepth <n>  deepest nesting of statements and expressions accepted
+ *              (default 1048576)
+ *    -stack <mb>    stack size of the threads running the passes
+ *              (default 1024)
+ *    -fastlex  scan with the hand-written FastLexer instead of the Yylex
+ *              generated by JLex (same tokens and messages); with more
+ *              than one thread and without -stream, large inputs are
+ *              scanned in parallel
+ *    -sched    reorder the instructions of each basic block so that a
+ *              value loaded by lw is not used by the next instruction
+ *    -noreorder  -sched, and also fill the delay slots of branches and
+ *              loads, for a machine with delayed branches and loads
+ *              (spim -delayed_branches -delayed_loads)
+ *    -checkflat  check the read scan DeadCode makes over a FlatTree
+ *              against the same scan written as an ASTVisitor, and fail
+ *              if they differ
  *
  * The program opens the two files, creates a scanner and a parser, and
  * calls the parser.  If the parse is successful, then it will call name
@@ -17,6 +50,13 @@ import java_cup.runtime.*;
 public class P6 {
 	FileReader inFile;
 	private PrintWriter outFile;
+	private String outFileName;
+	private String source;  // text of inFile, once read
+	private CompileCache compileCache;
+	private boolean stream = false;
+	private boolean fastLex = false;
+	// options that change the generated code, part of the cache key
+	private StringBuilder codeOptions = new StringBuilder();
 	private static PrintStream outStream = System.err;
 
 	public static final int RESULT_CORRECT = 0;
@@ -55,6 +95,81 @@ public class P6 {
 		} catch(BadOutfileException e) {
 			pukeAndDie(e.getMessage());
 		}
+
+		String cacheDir = null;
+		String fnCacheDir = null;
+		long cacheSize = 256;
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].equals("-j") && i + 1 < args.length) {
+				setThreads(parseCount(args[++i]));
+			} else if (args[i].equals("-icache") && i + 1 < args.length) {
+				fnCacheDir = args[++i];
+			} else if (args[i].equals("-cache") && i + 1 < args.length) {
+				cacheDir = args[++i];
+			} else if (args[i].equals("-cachesize") && i + 1 < args.length) {
+				cacheSize = parseCount(args[++i]);
+			} else if (args[i].equals("-stream")) {
+				stream = true;
+				codeOptions.append(" -stream");  // changes the messages
+			} else if (args[i].equals("-checkflat")) {
+				DeadCode.check = true;
+				codeOptions.append(" -checkflat");  // not from a cache
+			} else if (args[i].equals("-fastlex")) {
+				fastLex = true;
+			} else if (args[i].equals("-sched")) {
+				setSchedule(Math.max(Scheduler.mode, Scheduler.SCHEDULE));
+			} else if (args[i].equals("-noreorder")) {
+				setSchedule(Scheduler.NOREORDER);
+			} else if (args[i].equals("-maxdepth") && i + 1 < args.length) {
+				ASTnode.maxDepth = parseCount(args[++i]);
+				// decides whether the file compiles
+				codeOptions.append(" -maxdepth " + ASTnode.maxDepth);
+			} else if (args[i].equals("-stack") && i + 1 < args.length) {
+				ProgramNode.stackSize = (long)parseCount(args[++i]) << 20;
+			} else {
+				pukeAndDie("unknown option: " + args[i]);
+			}
+		}
+		if (fnCacheDir != null) {
+			try {
+				setFnCache(fnCacheDir, cacheSize << 20);
+			} catch (IOException e) {
+				pukeAndDie("Could not use cache directory " + fnCacheDir);
+			}
+		}
+		if (stream && ProgramNode.cache != null) {
+			pukeAndDie("-stream cannot be used with -icache");
+		}
+		if (stream && cacheDir != null) {
+			// the cache key hashes the whole source and the entry holds
+			// the whole output, which -stream does not keep in memory
+			pukeAndDie("-stream cannot be used with -cache");
+		}
+		if (cacheDir != null) {
+			try {
+				setCompileCache(cacheDir, cacheSize << 20);
+			} catch (IOException e) {
+				pukeAndDie("Could not use cache directory " + cacheDir);
+			}
+		}
+	}
+
+	/**
+	 * Parse a positive count given on the command line
+	 * @param arg argument text
+	 * @return the count
+	 */
+	private int parseCount(String arg) {
+		try {
+			int n = Integer.parseInt(arg);
+			if (n > 0) {
+				return n;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		pukeAndDie("bad count: " + arg);
+		return 0;
 	}
 
 	/**
@@ -76,11 +191,73 @@ public class P6 {
 	public void setOutfile(String filename) throws BadOutfileException{
 		try {
 			outFile = new PrintWriter(filename);
+			outFileName = filename;
 		} catch (FileNotFoundException ex) {
 			throw new BadOutfileException(ex, filename);
 		}
 	}
 
+	/**
+	 * Number of threads used by the parallel passes
+	 * @param n thread count, 1 to run every pass serially
+	 */
+	public void setThreads(int n) {
+		ProgramNode.numThreads = n;
+	}
+
+	/**
+	 * Keep per-function results in a cache directory, so that functions
+	 * that did not change are not checked and generated again
+	 * @param dir cache directory
+	 * @param maxBytes size bound of the directory
+	 */
+	public void setFnCache(String dir, long maxBytes) throws IOException {
+		ProgramNode.cache = new FnCache(dir, version() + codeOptions, maxBytes);
+	}
+
+	/**
+	 * Schedule the instructions of each function
+	 * @param mode Scheduler.SCHEDULE or Scheduler.NOREORDER
+	 */
+	public void setSchedule(int mode) {
+		Scheduler.mode = mode;
+		codeOptions.append(mode == Scheduler.NOREORDER ? " -noreorder" : " -sched");
+	}
+
+	/**
+	 * Look up whole compilations in a cache directory shared with other
+	 * compilers, and add the result of this one to it
+	 * @param dir cache directory
+	 * @param maxBytes size bound of the directory
+	 */
+	public void setCompileCache(String dir, long maxBytes) throws IOException {
+		compileCache = new CompileCache(dir, maxBytes);
+	}
+
+	/**
+	 * Return a string identifying this build of the compiler: a hash of
+	 * the class files in the directory P6 was loaded from.
+	 */
+	static String version() {
+		MessageDigest md = FnCache.sha256();
+		try {
+			File dir = new File(P6.class.getProtectionDomain()
+			                    .getCodeSource().getLocation().toURI());
+			File[] files = dir.listFiles((d, name) -> name.endsWith(".class"));
+			if (files != null) {
+				Arrays.sort(files);
+				for (File f : files) {
+					md.update(f.getName().getBytes("UTF-8"));
+					md.update(Files.readAllBytes(f.toPath()));
+				}
+			}
+		} catch (Exception e) {
+			// running from somewhere unusual: fall back to the class name
+			md.update(P6.class.getName().getBytes());
+		}
+		return FnCache.hex(md.digest());
+	}
+
 	/**
 	 * Perform cleanup at the end of parsing. This should be called
 	 * after both good and bad input so that the files are all in a
@@ -129,15 +306,78 @@ public class P6 {
 	 * @return root of the CFG
 	 */
 	private Symbol parseCFG() {
+		return parseCFG(null);
+	}
+
+	/**
+	 * Like parseCFG(), handing every top-level decl to declHandler
+	 * instead of keeping it in the tree if declHandler is not null
+	 */
+	private Symbol parseCFG(java.util.function.Consumer<DeclNode> declHandler) {
 		try {
-			parser P = new parser(new Yylex(inFile));
+			Reader in = inFile;
+			if (ProgramNode.cache != null) {
+				// the cache keys include the source of each function
+				ProgramNode.cache.setSource(source());
+			}
+			if (source != null) {
+				in = new StringReader(source);
+			}
+			Scanner scanner = new Yylex(in);
+			if (fastLex) {
+				// ParallelLexer needs all of the text to split it, which
+				// -stream does not keep
+				ExecutorService pool = stream ? null : ProgramNode.pool();
+				scanner = pool == null ? new FastLexer(in)
+					: new ParallelLexer(in, pool);
+			}
+			parser P = new parser(scanner);
+			P.declHandler = declHandler;
 			return P.parse();
 		} catch (Exception e) {
 			return null;
 		}
 	}
 
+	/**
+	 * Parse the source of a function copied by the Inliner
+	 */
+	private static ProgramNode parseCopy(String text) {
+		try {
+			// FastLexer keeps no state between instances, unlike Yylex,
+			// so copies can be parsed in parallel
+			Scanner scanner = new FastLexer(new StringReader(text));
+			return (ProgramNode)new parser(scanner).parse().value;
+		} catch (Exception e) {
+			throw new IllegalStateException("cannot parse an inlined copy", e);
+		}
+	}
+
+	/**
+	 * Return the text of the input file, reading it on first use
+	 */
+	private String source() throws IOException {
+		if (source == null) {
+			source = readAll(inFile);
+		}
+		return source;
+	}
+
+	private static String readAll(Reader in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		char[] buf = new char[1 << 16];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			sb.append(buf, 0, n);
+		}
+		return sb.toString();
+	}
+
 	public int process() {
+		if (stream) {
+			return processStream();
+		}
+
 		Symbol cfgRoot = parseCFG();
 
 		ProgramNode astRoot = (ProgramNode)cfgRoot.value;
@@ -145,6 +385,7 @@ public class P6 {
 			return P6.RESULT_SYNTAX_ERROR;
 		}
 
+		Inliner.parse = P6::parseCopy;
 		astRoot.nameAnalysis();	 // perform name analysis
 		if (ErrMsg.getErr()) {
 			return P6.RESULT_NAME_ANALYSIS_ERROR;
@@ -162,8 +403,88 @@ public class P6 {
 		return P6.RESULT_CORRECT;
 	}
 
-	public void run() {
+	/**
+	 * Compile in streaming mode (see ProgramNode.startStream)
+	 */
+	private int processStream() {
+		// code is generated up to the first error, and a syntax error
+		// exits inside the parser, so write to a temporary file next to
+		// the output and only rename it over the (empty) output when the
+		// whole program compiled; leave no partial file
+		File out = new File(outFileName).getAbsoluteFile();
+		File tmp;
+		try {
+			tmp = File.createTempFile(out.getName(), ".tmp", out.getParentFile());
+			tmp.deleteOnExit();
+			Codegen.p = new PrintWriter(tmp);
+		} catch (IOException e) {
+			outStream.println("Could not write next to " + outFileName);
+			return P6.RESULT_OTHER_ERROR;
+		}
+		ProgramNode.startStream();
+		if (parseCFG(ProgramNode::compileDecl) == null) {
+			Codegen.p.close();
+			tmp.delete();
+			return P6.RESULT_SYNTAX_ERROR;
+		}
+		boolean nameErr = ProgramNode.endStream();
+		Codegen.p.close();
+		if (!ErrMsg.getErr()) {
+			outFile.close();
+			try {
+				Files.move(tmp.toPath(), out.toPath(),
+				           StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				outStream.println("Could not write " + outFileName);
+				return P6.RESULT_OTHER_ERROR;
+			}
+			return P6.RESULT_CORRECT;
+		}
+
+		tmp.delete();
+		return nameErr ? P6.RESULT_NAME_ANALYSIS_ERROR : P6.RESULT_TYPE_ERROR;
+	}
+
+	/**
+	 * Like process, but take the result from the compile cache if this
+	 * source was compiled before with the same compiler and options, and
+	 * add it to the cache otherwise. A syntax error ends the program
+	 * inside the parser, so those are never cached.
+	 */
+	public int processCached() {
+		String key;
+		try {
+			key = compileCache.key(version(), codeOptions.toString(), source());
+		} catch (IOException e) {
+			return process();
+		}
+
+		CompileCache.Entry hit = compileCache.lookup(key);
+		if (hit != null) {
+			ErrMsg.replay(hit.msgs);
+			outFile.print(hit.asm);
+			outFile.close();
+			return hit.resultCode;
+		}
+
+		ErrMsg.record();
 		int resultCode = process();
+		outFile.close();
+		try {
+			String asm = new String(Files.readAllBytes(new File(outFileName).toPath()));
+			compileCache.store(key,
+				new CompileCache.Entry(resultCode, ErrMsg.transcript(), asm));
+		} catch (IOException e) {
+			// not cached; the output itself is fine
+		}
+		return resultCode;
+	}
+
+	public void run() {
+		int resultCode = compileCache == null ? process() : processCached();
+		if (ProgramNode.cache != null) {
+			ProgramNode.cache.evict();
+		}
 		if (resultCode == RESULT_CORRECT) {
 			cleanup();
 			return;
@@ -211,8 +532,17 @@ public class P6 {
 		}
 	}
 
-	public static void main(String[] args) {
+	public static void main(String[] args) throws InterruptedException {
 		P6 instance = new P6(args);
-		instance.run();
+
+		// the passes recurse as deep as the program is nested, so run
+		// them on a thread whose stack is sized for that
+		Thread t = new Thread(null, instance::run, "P6", ProgramNode.stackSize);
+		t.setUncaughtExceptionHandler((thread, e) -> {
+			e.printStackTrace();
+			System.exit(1);
+		});
+		t.start();
+		t.join();
 	}
 }
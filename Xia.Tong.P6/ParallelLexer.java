@@ -0,0 +1,183 @@
+import java.io.*;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import java_cup.runtime.*;
+
+/**
+ * ParallelLexer
+ *
+ * Scanner for large inputs (P6 -fastlex with more than one thread). The
+ * input is split into chunks that end at a newline, and each chunk is
+ * scanned by its own FastLexer on the pool of the parallel passes while
+ * the parser takes the tokens of the chunks before it.
+ *
+ * No token, string literal or comment of Gibberish goes past the end of
+ * its line, so a chunk always starts where Yylex would start a token and
+ * no chunk has to be scanned again. What a chunk cannot know is on which
+ * line it starts: its line numbers count from 0 and are moved by the
+ * lines of the chunks before it as its tokens are handed out. Messages
+ * are kept with the number of the token they come before and printed
+ * when that token is handed out, and an Error is thrown there, so the
+ * parser sees exactly what it would see from one FastLexer.
+ */
+class ParallelLexer implements Scanner {
+    // smallest chunk worth a task, in chars
+    static int minChunk = 1 << 20;
+
+    private Reader in;  // read on the first call of next_token
+    private ExecutorService pool;
+    private FastLexer single;  // the input is one chunk
+
+    private List<Future<Chunk>> chunks;
+    private int nextChunk = 0;
+    private Chunk chunk;    // chunk being handed out, or null
+    private int tok;        // next token of chunk
+    private int msg;        // next message of chunk
+    private int lineBase = 0;   // lines before chunk
+
+    /**
+     * Tokens and messages of one chunk.
+     */
+    private static class Chunk {
+        List<Symbol> tokens = new ArrayList<Symbol>();
+        List<Message> msgs = new ArrayList<Message>();
+        Error error;    // thrown after the last token, if not null
+        int lines;
+    }
+
+    private static class Message {
+        int before;     // number of the token it comes before
+        boolean fatal;
+        int lineNum;
+        int charNum;
+        String text;
+
+        Message(int before, boolean fatal, int lineNum, int charNum, String text) {
+            this.before = before;
+            this.fatal = fatal;
+            this.lineNum = lineNum;
+            this.charNum = charNum;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Scanner for the text of in, using the threads of pool.
+     */
+    ParallelLexer(Reader in, ExecutorService pool) {
+        this.in = in;
+        this.pool = pool;
+    }
+
+    public Symbol next_token() throws IOException {
+        if (chunks == null) {
+            split();
+        }
+        if (single != null) {
+            return single.next_token();
+        }
+
+        while (true) {
+            if (chunk == null) {
+                if (nextChunk == chunks.size()) {
+                    return new Symbol(sym.EOF);
+                }
+                chunk = get(chunks.get(nextChunk));
+                chunks.set(nextChunk++, null);
+                tok = 0;
+                msg = 0;
+            }
+
+            while (msg < chunk.msgs.size() && chunk.msgs.get(msg).before == tok) {
+                Message m = chunk.msgs.get(msg++);
+                if (m.fatal) {
+                    ErrMsg.fatal(lineBase + m.lineNum, m.charNum, m.text);
+                } else {
+                    ErrMsg.warn(lineBase + m.lineNum, m.charNum, m.text);
+                }
+            }
+            if (tok < chunk.tokens.size()) {
+                Symbol S = chunk.tokens.get(tok++);
+                ((TokenVal)S.value).linenum += lineBase;
+                return S;
+            }
+            if (chunk.error != null) {
+                throw chunk.error;
+            }
+            lineBase += chunk.lines;
+            chunk = null;
+        }
+    }
+
+    /**
+     * Read the input and start scanning its chunks.
+     */
+    private void split() throws IOException {
+        CharBuffer text = FastLexer.readAll(in);
+        in = null;
+        char[] buf = text.array();
+        int end = text.limit();
+
+        chunks = new ArrayList<Future<Chunk>>();
+        int size = Math.max(minChunk, end / (4 * ProgramNode.numThreads));
+        if (end <= size) {
+            single = new FastLexer(buf, 0, end);
+            return;
+        }
+        int start = 0;
+        while (start < end) {
+            int stop = Math.min(start + size, end);
+            while (stop < end && buf[stop - 1] != '\n') {
+                stop++;
+            }
+            int from = start;
+            int to = stop;
+            chunks.add(pool.submit(() -> scan(buf, from, to)));
+            start = stop;
+        }
+    }
+
+    /**
+     * Scan buf[start..end), a run of whole lines.
+     */
+    private static Chunk scan(char[] buf, int start, int end) throws IOException {
+        Chunk c = new Chunk();
+        FastLexer lexer = new FastLexer(buf, start, end) {
+            void message(boolean fatal, int lineNum, int charNum, String msg) {
+                c.msgs.add(new Message(c.tokens.size(), fatal, lineNum, charNum, msg));
+            }
+        };
+        try {
+            Symbol S;
+            while ((S = lexer.next_token()).sym != sym.EOF) {
+                c.tokens.add(S);
+            }
+        } catch (Error e) {
+            c.error = e;
+        }
+        c.lines = lexer.lines();
+        return c;
+    }
+
+    private static Chunk get(Future<Chunk> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
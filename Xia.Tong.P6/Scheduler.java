@@ -0,0 +1,379 @@
+import java.util.*;
+
+/**
+ * Scheduler
+ *
+ * Instruction scheduling of the code of one function (P6 -sched and
+ * -noreorder). The code is taken as the text Codegen wrote for it, cut
+ * into basic blocks at labels, directives, branches, calls and syscalls,
+ * and the instructions of each block are list scheduled: an instruction
+ * whose operands are ready is picked before one that would wait on a lw,
+ * and among those the one on the longest path to the end of the block
+ * goes first. A block keeps its branch last.
+ *
+ * With -noreorder the output starts each function with .set noreorder
+ * and is meant for a machine with delayed branches and delayed loads
+ * (spim -delayed_branches -delayed_loads, or MipsSim): the slot after
+ * each branch or jump gets an instruction of its block that nothing else
+ * in the block waits for, or a nop, and a nop goes between a lw and an
+ * instruction that reads the loaded register right after it. Only
+ * instructions the assembler turns into one machine instruction are put
+ * in a delay slot.
+ *
+ * Two memory accesses are kept in order unless they are known to be to
+ * different words: the same base register with the same value and
+ * different offsets, different labels or offsets, a label and a
+ * register, or $fp and $sp. The last holds because everything stored
+ * through $sp is a temporary below the locals of the frame.
+ */
+class Scheduler {
+    // what is done to the code of each function
+    static final int OFF = 0;
+    static final int SCHEDULE = 1;      // -sched
+    static final int NOREORDER = 2;     // -noreorder: also fill delay slots
+    static int mode = OFF;
+
+    // most instructions scheduled together; longer blocks are cut, which
+    // keeps the pass linear on the long blocks of deeply nested code
+    private static final int WINDOW = 64;
+
+    private static final Set<String> ALU = new HashSet<String>(Arrays.asList(
+        "add", "addu", "addi", "addiu", "sub", "subu", "mul", "div", "rem",
+        "and", "or", "xor", "nor", "andi", "ori", "xori", "sll", "srl", "sra",
+        "slt", "sltu", "slti", "sltiu", "seq", "sne", "sgt", "sge", "sle",
+        "move", "neg", "not", "li", "la"));
+    private static final Set<String> BRANCH = new HashSet<String>(Arrays.asList(
+        "b", "j", "jal", "jr", "beq", "bne", "blt", "bgt", "ble", "bge",
+        "beqz", "bnez", "bltz", "bgtz", "blez", "bgez"));
+    // one machine instruction whatever the operands (given registers or a
+    // 16-bit immediate), so they may go in a delay slot
+    private static final Set<String> SLOT = new HashSet<String>(Arrays.asList(
+        "add", "addu", "addi", "addiu", "sub", "subu", "and", "or", "xor",
+        "nor", "andi", "ori", "xori", "sll", "srl", "sra", "slt", "sltu",
+        "slti", "sltiu", "move", "neg", "not", "li", "la", "sw"));
+
+    /**
+     * One line of generated code.
+     */
+    private static class Insn {
+        String text;
+        String op;          // null for labels, directives and blank lines
+        String def;         // register written, or null
+        List<String> uses = new ArrayList<String>(3);
+        boolean load;
+        boolean store;
+        boolean branch;     // ends its block and has a delay slot
+        boolean barrier;    // nothing moves across it
+        String base;        // base register of a memory operand
+        int baseVersion;    // number of writes to base before, in the block
+        String label;       // label of a memory operand
+        int offset;
+        boolean small = true;   // immediate and offset fit in 16 bits
+
+        Insn(String text) {
+            this.text = text;
+        }
+    }
+
+    /**
+     * Return the code of a function, scheduled.
+     */
+    static String schedule(String code) {
+        StringBuilder out = new StringBuilder(code.length() + code.length() / 8);
+        List<Insn> block = new ArrayList<Insn>();
+        for (String line : code.split("\n", -1)) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            Insn insn = parse(line);
+            if (insn.op == null || insn.barrier) {
+                flush(block, out);
+                out.append(line).append('\n');
+                if (mode == NOREORDER && line.trim().equals(".text")) {
+                    out.append("\t.set noreorder\n");
+                }
+                continue;
+            }
+            block.add(insn);
+            if (insn.branch || block.size() == WINDOW) {
+                flush(block, out);
+            }
+        }
+        flush(block, out);
+        return mode == NOREORDER ? loadDelays(out.toString()) : out.toString();
+    }
+
+    /**
+     * Parse one line of the code.
+     */
+    private static Insn parse(String line) {
+        Insn insn = new Insn(line);
+        String s = line;
+        int hash = s.indexOf('#');
+        if (hash >= 0) {
+            s = s.substring(0, hash);
+        }
+        s = s.trim();
+        String[] parts = s.split("\\s+", 2);
+        if (s.isEmpty() || s.startsWith(".") || parts[0].endsWith(":")) {
+            return insn;    // blank, directive or label
+        }
+
+        insn.op = parts[0];
+        String[] args = parts.length < 2 ? new String[0] : parts[1].split(",");
+        for (int k = 0; k < args.length; k++) {
+            args[k] = args[k].trim();
+        }
+
+        String op = insn.op;
+        if (op.equals("lw") || op.equals("sw")) {
+            insn.load = op.equals("lw");
+            insn.store = !insn.load;
+            if (insn.load) {
+                insn.def = args[0];
+            } else {
+                insn.uses.add(args[0]);
+            }
+            address(insn, args[1]);
+        } else if (BRANCH.contains(op)) {
+            insn.branch = true;
+            for (String a : args) {
+                if (a.startsWith("$")) {
+                    insn.uses.add(a);
+                } else if (!isInt(a)) {
+                    insn.label = a;
+                }
+            }
+            if (op.equals("jal")) {
+                insn.def = Codegen.RA;
+            }
+        } else if (ALU.contains(op) && args.length >= 2) {
+            insn.def = args[0];
+            for (int k = 1; k < args.length; k++) {
+                if (args[k].startsWith("$")) {
+                    insn.uses.add(args[k]);
+                } else if (isInt(args[k])) {
+                    long v = Long.parseLong(args[k]);
+                    insn.small &= v >= -32768 && v <= 32767;
+                } else if (op.equals("la")) {
+                    address(insn, args[k]);
+                } else {
+                    insn.small = false;
+                }
+            }
+        } else {
+            insn.barrier = true;    // syscall, or something not known here
+        }
+        if ("$zero".equals(insn.def) || "$0".equals(insn.def)) {
+            insn.def = null;
+        }
+        return insn;
+    }
+
+    /**
+     * Take apart the address operand a (off($reg) or label[+off]).
+     */
+    private static void address(Insn insn, String a) {
+        int paren = a.indexOf('(');
+        if (paren >= 0) {
+            insn.base = a.substring(paren + 1, a.indexOf(')'));
+            insn.uses.add(insn.base);
+            insn.offset = paren == 0 ? 0 : Integer.parseInt(a.substring(0, paren));
+            insn.small = insn.offset >= -32768 && insn.offset <= 32767;
+        } else {
+            int plus = a.indexOf('+');
+            insn.label = plus < 0 ? a : a.substring(0, plus);
+            insn.offset = plus < 0 ? 0 : Integer.parseInt(a.substring(plus + 1));
+            insn.small = false;     // lui and a memory access
+        }
+    }
+
+    private static boolean isInt(String a) {
+        return !a.isEmpty() && (Character.isDigit(a.charAt(0)) || a.charAt(0) == '-');
+    }
+
+    /**
+     * Schedule the instructions of block, write them to out and empty
+     * block.
+     */
+    private static void flush(List<Insn> block, StringBuilder out) {
+        int n = block.size();
+        if (n == 0) {
+            return;
+        }
+
+        // versions of the base registers, for telling memory operands apart
+        Map<String, Integer> writes = new HashMap<String, Integer>();
+        for (Insn insn : block) {
+            if (insn.base != null) {
+                insn.baseVersion = writes.getOrDefault(insn.base, 0);
+            }
+            if (insn.def != null) {
+                writes.merge(insn.def, 1, Integer::sum);
+            }
+        }
+
+        // lat[i][j] > 0: j must issue at least lat[i][j] cycles after i
+        int[][] lat = new int[n][n];
+        int[] preds = new int[n];
+        for (int j = 0; j < n; j++) {
+            Insn b = block.get(j);
+            for (int i = 0; i < j; i++) {
+                Insn a = block.get(i);
+                int l = 0;
+                if (a.def != null && b.uses.contains(a.def)) {
+                    l = a.load ? 2 : 1;
+                } else if ((b.def != null && (b.def.equals(a.def) || a.uses.contains(b.def)))
+                           || conflict(a, b) || b.branch) {
+                    l = 1;
+                }
+                if (l > 0) {
+                    lat[i][j] = l;
+                    preds[j]++;
+                }
+            }
+        }
+
+        // length of the longest path from each instruction to the end
+        int[] height = new int[n];
+        for (int i = n - 1; i >= 0; i--) {
+            height[i] = 1;
+            for (int j = i + 1; j < n; j++) {
+                if (lat[i][j] > 0) {
+                    height[i] = Math.max(height[i], lat[i][j] + height[j]);
+                }
+            }
+        }
+
+        int[] earliest = new int[n];
+        boolean[] done = new boolean[n];
+        List<Integer> order = new ArrayList<Integer>(n + 1);
+        int cycle = 0;
+        for (int k = 0; k < n; k++) {
+            int best = -1;
+            for (int i = 0; i < n; i++) {
+                if (done[i] || preds[i] > 0) {
+                    continue;
+                }
+                if (best < 0 || better(i, best, earliest, height, cycle)) {
+                    best = i;
+                }
+            }
+            int issue = Math.max(cycle, earliest[best]);
+            cycle = issue + 1;
+            done[best] = true;
+            order.add(best);
+            for (int j = best + 1; j < n; j++) {
+                if (lat[best][j] > 0) {
+                    preds[j]--;
+                    earliest[j] = Math.max(earliest[j], issue + lat[best][j]);
+                }
+            }
+        }
+
+        boolean slot = mode == NOREORDER && block.get(n - 1).branch;
+        int filler = slot ? filler(block, order, lat) : -1;
+        if (filler >= 0) {
+            order.remove(Integer.valueOf(filler));
+        }
+        for (int i : order) {
+            out.append(block.get(i).text).append('\n');
+        }
+        if (slot) {
+            out.append(filler >= 0 ? block.get(filler).text : "\tnop").append('\n');
+        }
+        block.clear();
+    }
+
+    /**
+     * Is i a better pick than j at cycle? One that can issue now comes
+     * first, then the one that can issue soonest, then the higher, then
+     * the one that came first.
+     */
+    private static boolean better(int i, int j, int[] earliest, int[] height,
+                                  int cycle) {
+        int ei = Math.max(earliest[i], cycle);
+        int ej = Math.max(earliest[j], cycle);
+        if (ei != ej) {
+            return ei < ej;
+        }
+        if (height[i] != height[j]) {
+            return height[i] > height[j];
+        }
+        return i < j;
+    }
+
+    /**
+     * May a and b (a first) not be swapped because of memory?
+     */
+    private static boolean conflict(Insn a, Insn b) {
+        if (!(a.load || a.store) || !(b.load || b.store) || (a.load && b.load)) {
+            return false;
+        }
+        if (a.base == null && b.base == null) {
+            return a.label.equals(b.label) && a.offset == b.offset;
+        }
+        if (a.base == null || b.base == null) {
+            return false;
+        }
+        if (a.base.equals(b.base)) {
+            return a.baseVersion != b.baseVersion || a.offset == b.offset;
+        }
+        return !(frame(a.base) && frame(b.base));
+    }
+
+    private static boolean frame(String reg) {
+        return reg.equals(Codegen.FP) || reg.equals(Codegen.SP);
+    }
+
+    /**
+     * Return the instruction of the block to put in the delay slot of its
+     * branch, or -1: one that the assembler keeps as one instruction, that
+     * is not a lw (its register would not be ready after the slot), and
+     * that no later instruction of the block, the branch included, waits
+     * for.
+     */
+    private static int filler(List<Insn> block, List<Integer> order, int[][] lat) {
+        int n = block.size();
+        Insn branch = block.get(n - 1);
+        for (int k = order.size() - 2; k >= 0; k--) {
+            int i = order.get(k);
+            Insn insn = block.get(i);
+            if (!SLOT.contains(insn.op) || !insn.small
+                || (insn.def != null && (branch.uses.contains(insn.def)
+                                         || insn.def.equals(branch.def)))
+                || (branch.def != null && insn.uses.contains(branch.def))) {
+                continue;
+            }
+            boolean free = true;
+            for (int m = k + 1; m < order.size() - 1 && free; m++) {
+                free = lat[i][order.get(m)] == 0;
+            }
+            if (free) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Put a nop after each lw that is followed by an instruction reading
+     * the loaded register.
+     */
+    private static String loadDelays(String code) {
+        StringBuilder out = new StringBuilder(code.length());
+        Insn prev = null;
+        for (String line : code.split("\n")) {
+            Insn insn = parse(line);
+            if (insn.op != null) {
+                if (prev != null && prev.load && prev.def != null
+                    && (insn.uses.contains(prev.def) || insn.barrier)) {
+                    out.append("\tnop\n");
+                }
+                prev = insn;
+            }
+            out.append(line).append('\n');
+        }
+        return out.toString();
+    }
+}
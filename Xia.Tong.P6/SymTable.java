@@ -1,16 +1,28 @@
 import java.util.*;
 
 public class SymTable {
-    private List<HashMap<String, TSym>> list;
+    private List<Map<String, TSym>> list;
 	private int currOffset;
 	private boolean globalScope;
     
     public SymTable() {
-        list = new LinkedList<HashMap<String, TSym>>();
+        list = new LinkedList<Map<String, TSym>>();
         list.add(new HashMap<String, TSym>());
 		currOffset = 0;
 		globalScope = true;
     }
+
+    /**
+     * Create a table whose outermost scope is a read-only view of the
+     * current scope of outer. Several such tables can share one frozen
+     * global scope, each with its own stack of local scopes.
+     */
+    public SymTable(SymTable outer) {
+        list = new LinkedList<Map<String, TSym>>();
+        list.add(Collections.unmodifiableMap(outer.list.get(0)));
+		currOffset = 0;
+		globalScope = false;
+    }
     
 	public void setGlobalScope(boolean value) {
 		globalScope = value;
@@ -43,7 +55,7 @@ public class SymTable {
           throw new EmptySymTableException();
         }
 
-        HashMap<String, TSym> symTab = list.get(0);
+        Map<String, TSym> symTab = list.get(0);
         if (symTab.containsKey(name)) {
           throw new DuplicateSymException();
         } else {
@@ -72,7 +84,7 @@ public class SymTable {
          throw new EmptySymTableException();
        }
 
-       for (HashMap<String, TSym> symTab : list) {
+       for (Map<String, TSym> symTab : list) {
          if (symTab.containsKey(name)){
             return symTab.get(name);
          }
@@ -89,7 +101,7 @@ public class SymTable {
 
     public void print() {
        System.out.print("\nSym Table\n");
-       for (HashMap<String, TSym> symTab : list) {
+       for (Map<String, TSym> symTab : list) {
           System.out.println(symTab.toString());
        }
        System.out.println();
@@ -127,18 +127,26 @@ class StructSym extends TSym {
  * The StructDefSym class is a subclass of the TSym class just for the
  * definition of a struct type.
  * Each StructDefSym contains a symbol table to hold information about its
- * fields.
+ * fields, and the number of bytes a variable of the struct type takes.
+ * The offset of each field's TSym is its byte offset from the start of
+ * such a variable.
  */
 class StructDefSym extends TSym {
     // new fields
     private SymTable symTab;
+    private int size;
 
-    public StructDefSym(SymTable table) {
+    public StructDefSym(SymTable table, int size) {
         super(new StructDefType());
         symTab = table;
+        this.size = size;
     }
 
     public SymTable getSymTable() {
         return symTab;
     }
+
+    public int getSize() {
+        return size;
+    }
 }
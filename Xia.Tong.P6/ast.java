@@ -1,5 +1,7 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 
 // **********************************************************************
 // The ASTnode class defines the nodes of the abstract-syntax tree that
@@ -20,17 +22,17 @@ import java.util.*;
 //     Subclass            Kids
 //     --------            ----
 //     ProgramNode         DeclListNode
-//     DeclListNode        linked list of DeclNode
+//     DeclListNode        list of DeclNode
 //     DeclNode:
 //       VarDeclNode       TypeNode, IdNode, int
 //       FnDeclNode        TypeNode, IdNode, FormalsListNode, FnBodyNode
 //       FormalDeclNode    TypeNode, IdNode
 //       StructDeclNode    IdNode, DeclListNode
 //
-//     FormalsListNode     linked list of FormalDeclNode
+//     FormalsListNode     list of FormalDeclNode
 //     FnBodyNode          DeclListNode, StmtListNode
-//     StmtListNode        linked list of StmtNode
-//     ExpListNode         linked list of ExpNode
+//     StmtListNode        list of StmtNode
+//     ExpListNode         list of ExpNode
 //
 //     TypeNode:
 //       IntNode           -- none --
@@ -100,6 +102,10 @@ import java.util.*;
 //        AndNode,         OrNode,          EqualsNode,     NotEqualsNode,
 //        LessNode,        GreaterNode,     LessEqNode,     GreaterEqNode
 //
+// Every node lists its kids through children(), so a new analysis can be
+// written once as an ASTVisitor (see walk) instead of as a method on each
+// class, or as a loop over the arrays of a FlatTree.
+//
 // **********************************************************************
 
 // **********************************************************************
@@ -110,10 +116,90 @@ abstract class ASTnode {
     // every subclass must provide an unparse operation
     abstract public void unparse(PrintWriter p, int indent);
 
+    /**
+     * Return the kids of this node, in source order (none by default).
+     */
+    public List<? extends ASTnode> children() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Walk the tree rooted at this node in depth-first order, calling
+     * v.enter before the kids of a node and v.leave after them. Uses an
+     * explicit stack, so any depth of nesting can be walked.
+     */
+    public void walk(ASTVisitor v) {
+        ArrayDeque<ASTnode> nodes = new ArrayDeque<ASTnode>();
+        ArrayDeque<Iterator<? extends ASTnode>> kids =
+            new ArrayDeque<Iterator<? extends ASTnode>>();
+        if (!v.enter(this)) {
+            v.leave(this);
+            return;
+        }
+        nodes.push(this);
+        kids.push(children().iterator());
+        while (!nodes.isEmpty()) {
+            Iterator<? extends ASTnode> it = kids.peek();
+            if (it.hasNext()) {
+                ASTnode kid = it.next();
+                if (v.enter(kid)) {
+                    nodes.push(kid);
+                    kids.push(kid.children().iterator());
+                } else {
+                    v.leave(kid);
+                }
+            } else {
+                kids.pop();
+                v.leave(nodes.pop());
+            }
+        }
+    }
+
     // this method can be used by the unparse methods to do indenting
     protected void addIndentation(PrintWriter p, int indent) {
         for (int k=0; k<indent; k++) p.print(" ");
     }
+
+    /**
+     * Return the nesting depth of this node: the number of nested
+     * statements and expressions it is made of. Every pass recurses over
+     * the tree, so this bounds the stack they need.
+     */
+    public int depth() {
+        return myDepth;
+    }
+
+    /**
+     * Set the depth of this node from its kids (which are built first, the
+     * parser works bottom up) and report the node that first goes over
+     * maxDepth, at the location of at.
+     */
+    protected void nest(ExpNode at, ASTnode... kids) {
+        int d = 0;
+        for (ASTnode kid : kids) {
+            if (kid != null && kid.myDepth > d) {
+                d = kid.myDepth;
+            }
+        }
+        myDepth = d + 1;
+        if (myDepth == maxDepth + 1) {
+            ErrMsg.fatal(at.lineNum(), at.charNum(), "Nesting too deep");
+        }
+    }
+
+    // deepest nesting accepted; see P6 -maxdepth
+    public static int maxDepth = 1 << 20;
+
+    protected int myDepth = 0;
+
+    // the parser builds lists of kids in ArrayLists; drop their spare
+    // capacity once the list is complete
+    protected static <T> List<T> trimmed(List<T> list) {
+        if (list instanceof ArrayList) {
+            ((ArrayList<T>)list).trimToSize();
+        }
+        return list;
+    }
 }
 
 // **********************************************************************
@@ -129,14 +215,17 @@ class ProgramNode extends ASTnode {
     /**
      * nameAnalysis
      * Creates an empty symbol table for the outermost scope, then processes
-     * all of the globals, struct defintions, and functions in the program.
+     * all of the globals, struct defintions, and function signatures in the
+     * program, followed by the function bodies.
      */
     public void nameAnalysis() {
         SymTable symTab = new SymTable();
-        myDeclList.nameAnalysis(symTab);
+        Inliner.capture(myDeclList);    // before any name is linked
+        myDeclList.nameAnalysisProgram(symTab);
 	if (noMain) {
 		ErrMsg.fatal(0, 0, "No main function");
 	}
+        Inliner.plan(myDeclList, symTab);
     }
 
     /**
@@ -144,27 +233,128 @@ class ProgramNode extends ASTnode {
      */
     public void codeGen() {
 	    myDeclList.codeGen();
+	    Codegen.genDataSection();
     }
 
     /**
      * typeCheck
      */
     public void typeCheck() {
+        if (cache != null) {
+            myDeclList.setCacheKeys(cache);
+        }
         myDeclList.typeCheck();
     }
 
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myDeclList);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         myDeclList.unparse(p, indent);
     }
 
+    /**
+     * Return the pool used by the parallel passes, or null if they should
+     * run serially (numThreads <= 1).
+     */
+    public static synchronized ExecutorService pool() {
+        if (numThreads <= 1) {
+            return null;
+        }
+        if (pool == null) {
+            // the passes recurse as deep as the tree is nested, so the
+            // workers get the same stack as the thread running P6
+            pool = Executors.newFixedThreadPool(numThreads, task -> {
+                Thread t = new Thread(null, task, "pass-worker", stackSize);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return pool;
+    }
+
     // 1 kid
     private DeclListNode myDeclList;
     public static boolean noMain = true;
+
+    // number of worker threads for the parallel passes
+    public static int numThreads = Runtime.getRuntime().availableProcessors();
+    private static ExecutorService pool;
+
+    // stack size of the threads running the passes; see P6 -stack
+    public static long stackSize = 1L << 30;
+
+    // per-function results of earlier runs (null: not used)
+    public static FnCache cache = null;
+
+    /**
+     * startStream
+     * Start a streaming compilation (see P6 -stream). Instead of building
+     * a ProgramNode, the parser hands each top-level decl to compileDecl
+     * as soon as it is complete; compileDecl runs all the passes on it and
+     * then drops it, so memory does not grow with the size of the program.
+     * As in a one-pass compiler, names must be declared before they are
+     * used. Once there is an error no more code is generated, and after a
+     * name analysis error decls are no longer type checked.
+     */
+    public static void startStream() {
+        streamTab = new SymTable();
+        streamNameErr = false;
+    }
+
+    /**
+     * compileDecl
+     * Name analyze, type check and generate code for the next top-level
+     * decl of a streaming compilation.
+     */
+    public static void compileDecl(DeclNode decl) {
+        ErrMsg.startBuffering();
+        if (decl instanceof VarDeclNode) {
+            ((VarDeclNode)decl).nameAnalysis(streamTab, streamTab);
+        } else {
+            decl.nameAnalysis(streamTab);
+        }
+        String msgs = ErrMsg.stopBuffering();
+        if (msgs.contains("***ERROR***")) {
+            streamNameErr = true;
+        }
+        ErrMsg.flush(msgs);
+        if (streamNameErr) {
+            return;
+        }
+
+        decl.typeCheck();
+        if (!ErrMsg.getErr()) {
+            decl.codeGen();
+        }
+    }
+
+    /**
+     * endStream
+     * Finish a streaming compilation.
+     * Returns true if there were name analysis errors.
+     */
+    public static boolean endStream() {
+        if (noMain) {
+            ErrMsg.fatal(0, 0, "No main function");
+            streamNameErr = true;
+        }
+        if (!ErrMsg.getErr()) {
+            Codegen.genDataSection();
+        }
+        streamTab = null;
+        return streamNameErr;
+    }
+
+    // global scope of a streaming compilation
+    private static SymTable streamTab;
+    private static boolean streamNameErr;
 }
 
 class DeclListNode extends ASTnode {
     public DeclListNode(List<DeclNode> S) {
-        myDecls = S;
+        myDecls = trimmed(S);
     }
 
     /**
@@ -191,21 +381,181 @@ class DeclListNode extends ASTnode {
         }
     }
 
+    /**
+     * nameAnalysisProgram
+     * Process the top-level decls of a program in two passes:
+     * - enter all globals, struct definitions and function signatures into
+     *   symTab, in order
+     * - process each function body against its own local scopes on top of
+     *   the (now read-only) global scope; the bodies are independent, so
+     *   they are done in parallel when a pool is available
+     * Function bodies may therefore refer to globals and functions declared
+     * after them. Messages are printed in declaration order.
+     */
+    public void nameAnalysisProgram(SymTable symTab) {
+        List<String> declMsgs = new ArrayList<String>(myDecls.size());
+        for (DeclNode node : myDecls) {
+            ErrMsg.startBuffering();
+            if (node instanceof FnDeclNode) {
+                ((FnDeclNode)node).declare(symTab);
+            } else {
+                node.nameAnalysis(symTab);
+            }
+            declMsgs.add(ErrMsg.stopBuffering());
+        }
+
+        List<String> bodyMsgs = parallelMap(ProgramNode.pool(), node -> {
+            ErrMsg.startBuffering();
+            ((FnDeclNode)node).nameAnalysisBody(new SymTable(symTab));
+            return ErrMsg.stopBuffering();
+        });
+
+        for (int k = 0; k < declMsgs.size(); k++) {
+            ErrMsg.flush(declMsgs.get(k));
+            if (bodyMsgs.get(k) != null) {
+                ErrMsg.flush(bodyMsgs.get(k));
+            }
+        }
+    }
+
     /**
      * typeCheck
+     * After name analysis a function body only reads the symbols it is
+     * linked to, so the functions are checked in parallel when a pool is
+     * available. The messages of each function are buffered and printed
+     * in declaration order, which gives the same output as a serial check.
      */
     public void typeCheck() {
-        for (DeclNode node : myDecls) {
+        ExecutorService pool = ProgramNode.pool();
+        if (pool == null) {
+            for (DeclNode node : myDecls) {
+                node.typeCheck();
+            }
+            return;
+        }
+
+        List<String> msgs = parallelMap(pool, node -> {
+            ErrMsg.startBuffering();
             node.typeCheck();
+            return ErrMsg.stopBuffering();
+        });
+        for (String m : msgs) {
+            if (m != null) {
+                ErrMsg.flush(m);
+            }
+        }
+    }
+
+    /**
+     * setCacheKeys
+     * Give every function of the program its key in cache. The source of a
+     * function is taken to run from the line of its name up to the line of
+     * the next top-level decl.
+     */
+    public void setCacheKeys(FnCache cache) {
+        StringWriter structs = new StringWriter();
+        PrintWriter sp = new PrintWriter(structs);
+        for (DeclNode node : myDecls) {
+            if (node instanceof StructDeclNode) {
+                node.unparse(sp, 0);
+            }
+        }
+        sp.flush();
+
+        FnDeclNode fn = null;
+        for (DeclNode node : myDecls) {
+            if (fn != null) {
+                setCacheKey(cache, fn, node.lineNum(), structs.toString());
+            }
+            fn = node instanceof FnDeclNode ? (FnDeclNode)node : null;
+        }
+        if (fn != null) {
+            setCacheKey(cache, fn, Integer.MAX_VALUE, structs.toString());
+        }
+    }
+
+    private void setCacheKey(FnCache cache, FnDeclNode fn, int endLine,
+                             String structs) {
+        StringWriter resolved = new StringWriter();
+        PrintWriter rp = new PrintWriter(resolved);
+        fn.unparse(rp, 0);
+        rp.flush();
+        // the code of fn also has the functions inlined into it
+        fn.setCacheKey(cache.key(cache.source(fn.lineNum(), endLine),
+                                 resolved.toString() + Inliner.sources(fn),
+                                 structs));
+    }
+
+    /**
+     * Apply task to every FnDeclNode of the list on the given pool (in
+     * the calling thread if pool is null).
+     * Returns the results in declaration order; the entries for other
+     * kinds of decls are null.
+     */
+    private <T> List<T> parallelMap(ExecutorService pool,
+                                    Function<DeclNode, T> task) {
+        List<Future<T>> futures = new ArrayList<Future<T>>(myDecls.size());
+        for (DeclNode node : myDecls) {
+            if (!(node instanceof FnDeclNode)) {
+                futures.add(null);
+            } else if (pool == null) {
+                futures.add(CompletableFuture.completedFuture(
+                                task.apply(node)));
+            } else {
+                futures.add(pool.submit(() -> task.apply(node)));
+            }
         }
+
+        List<T> results = new ArrayList<T>(futures.size());
+        for (Future<T> f : futures) {
+            try {
+                results.add(f == null ? null : f.get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ex);
+            } catch (ExecutionException ex) {
+                throw new IllegalStateException(ex.getCause());
+            }
+        }
+        return results;
     }
 
+    /**
+     * codeGen
+     * Functions are generated in parallel when a pool is available, each
+     * into its own buffer; the buffers are written out in declaration
+     * order. Labels are allocated per function, so the output is the same
+     * whatever the number of threads.
+     */
     public void codeGen() {
-        for(DeclNode node : myDecls){
+        ExecutorService pool = ProgramNode.pool();
+        if (pool == null) {
+            for(DeclNode node : myDecls){
+                node.codeGen();
+            }
+            return;
+        }
+
+        List<String> chunks = parallelMap(pool, node -> {
+            Codegen.startBuffering();
             node.codeGen();
+            return Codegen.stopBuffering();
+        });
+        Iterator<String> it = chunks.iterator();
+        for (DeclNode node : myDecls) {
+            String chunk = it.next();
+            if (chunk != null) {
+                Codegen.emit(chunk);
+            } else {
+                node.codeGen();
+            }
         }
     }
 
+    public List<? extends ASTnode> children() {
+        return Collections.unmodifiableList(myDecls);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         Iterator it = myDecls.iterator();
         try {
@@ -224,7 +574,7 @@ class DeclListNode extends ASTnode {
 
 class FormalsListNode extends ASTnode {
     public FormalsListNode(List<FormalDeclNode> S) {
-        myFormals = S;
+        myFormals = trimmed(S);
     }
 
     /**
@@ -235,7 +585,7 @@ class FormalsListNode extends ASTnode {
      *     if there was no error, add type of formal decl to list
      */
     public List<Type> nameAnalysis(SymTable symTab) {
-        List<Type> typeList = new LinkedList<Type>();
+        List<Type> typeList = new ArrayList<Type>(myFormals.size());
         for (FormalDeclNode node : myFormals) {
             TSym sym = node.nameAnalysis(symTab);
             if (sym != null) {
@@ -252,6 +602,10 @@ class FormalsListNode extends ASTnode {
         return myFormals.size();
     }
 
+    public List<? extends ASTnode> children() {
+        return Collections.unmodifiableList(myFormals);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         Iterator<FormalDeclNode> it = myFormals.iterator();
         if (it.hasNext()) { // if there is at least one element
@@ -299,6 +653,10 @@ class FnBodyNode extends ASTnode {
         myStmtList.typeCheck(retType);
     }
 
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myDeclList, myStmtList);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         myDeclList.unparse(p, indent);
         myStmtList.unparse(p, indent);
@@ -317,7 +675,10 @@ class FnBodyNode extends ASTnode {
 
 class StmtListNode extends ASTnode {
     public StmtListNode(List<StmtNode> S) {
-        myStmts = S;
+        myStmts = trimmed(S);
+        for (StmtNode node : myStmts) {
+            myDepth = Math.max(myDepth, node.depth());
+        }
     }
 
     /**
@@ -339,6 +700,17 @@ class StmtListNode extends ASTnode {
         }
     }
 
+    public List<? extends ASTnode> children() {
+        return Collections.unmodifiableList(myStmts);
+    }
+
+    /**
+     * Replace the statements of the list (see DeadCode).
+     */
+    public void setStmts(List<StmtNode> S) {
+        myStmts = trimmed(S);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         Iterator<StmtNode> it = myStmts.iterator();
         while (it.hasNext()) {
@@ -361,7 +733,10 @@ class StmtListNode extends ASTnode {
 
 class ExpListNode extends ASTnode {
     public ExpListNode(List<ExpNode> S) {
-        myExps = S;
+        myExps = trimmed(S);
+        for (ExpNode node : myExps) {
+            myDepth = Math.max(myDepth, node.depth());
+        }
     }
 
     public int size() {
@@ -402,6 +777,10 @@ class ExpListNode extends ASTnode {
         }
     }
 
+    public List<? extends ASTnode> children() {
+        return Collections.unmodifiableList(myExps);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         Iterator<ExpNode> it = myExps.iterator();
         if (it.hasNext()) { // if there is at least one element
@@ -435,6 +814,11 @@ abstract class DeclNode extends ASTnode {
      */
     abstract public TSym nameAnalysis(SymTable symTab);
 
+    /**
+     * Return the line number of the declared name.
+     */
+    abstract public int lineNum();
+
     // default version of typeCheck for non-function decls
     public void typeCheck() { }
     public void codeGen() {
@@ -526,16 +910,18 @@ class VarDeclNode extends DeclNode {
                 }
                 else {
                     sym = new TSym(myType.type());
-		    if (!globalTab.isGlobalScope()) {
-			int offset = globalTab.getOffset();
-			sym.setOffset(offset);
-			globalTab.setOffset(offset - 4); // everything is int or bool
-		    } else {
-		    	sym.setOffset(1);
-	    	    }
                 }
-                symTab.addDecl(name, sym);
                 myId.link(sym);
+		if (!globalTab.isGlobalScope()) {
+		    // the whole variable lies below the next free word, so
+		    // its fields are at increasing offsets from its start
+		    int offset = globalTab.getOffset() - (size() - 4);
+		    sym.setOffset(offset);
+		    globalTab.setOffset(offset - 4);
+		} else {
+		    sym.setOffset(1);
+		}
+                symTab.addDecl(name, sym);
             } catch (DuplicateSymException ex) {
                 System.err.println("Unexpected DuplicateSymException " +
                                    " in VarDeclNode.nameAnalysis");
@@ -554,6 +940,33 @@ class VarDeclNode extends DeclNode {
         return sym;
     }
 
+    public int lineNum() {
+        return myId.lineNum();
+    }
+
+    /**
+     * Return the symbol of the declared name (null if the decl is bad).
+     */
+    public TSym sym() {
+        return myId.sym();
+    }
+
+    /**
+     * Return the number of bytes a variable of this decl takes: a word
+     * for an int or bool, the size of the struct type otherwise.
+     */
+    public int size() {
+        TSym sym = myId.sym();
+        if (sym instanceof StructSym) {
+            return ((StructDefSym)((StructSym)sym).getStructType().sym()).getSize();
+        }
+        return 4;
+    }
+
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myType, myId);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         myType.unparse(p, 0);
@@ -566,9 +979,8 @@ class VarDeclNode extends DeclNode {
     public void codeGen() {
         if(myId.isGlobal())
         {
-            Codegen.generateDirectory(".data");
-            Codegen.generateDirectory(".align","2");
-            Codegen.generateLabeled("_"+myId.name(),".space",""," 4");
+            // emitted with the rest of the .data section at the end
+            Codegen.addGlobal("_"+myId.name(), size());
         }
     }
 
@@ -605,8 +1017,19 @@ class FnDeclNode extends DeclNode {
      *     exit scope
      */
     public TSym nameAnalysis(SymTable symTab) {
+        declare(symTab);
+        nameAnalysisBody(symTab);
+        return null;
+    }
+
+    /**
+     * declare
+     * Given a symbol table symTab, do:
+     * if this name has already been declared in this scope, then error
+     * else add name to local symbol table
+     */
+    public void declare(SymTable symTab) {
         String name = myId.name();
-        FnSym sym = null;
         TSym symCheckMul = null;
 
         try {
@@ -624,7 +1047,7 @@ class FnDeclNode extends DeclNode {
         else { // add function name to local symbol table
             if (name.equals("main")) ProgramNode.noMain = false;
             try {
-                sym = new FnSym(myType.type(), myFormalsList.length());
+                FnSym sym = new FnSym(myType.type(), myFormalsList.length());
                 symTab.addDecl(name, sym);
                 myId.link(sym);
             } catch (DuplicateSymException ex) {
@@ -641,6 +1064,21 @@ class FnDeclNode extends DeclNode {
                 System.exit(-1);
             }
         }
+    }
+
+    /**
+     * nameAnalysisBody
+     * Given a symbol table symTab in which this function has been declared,
+     * do:
+     *     enter new scope
+     *     process the formals
+     *     if this function is not multiply declared,
+     *         update symbol table entry with types of formals
+     *     process the body of the function
+     *     exit scope
+     */
+    public void nameAnalysisBody(SymTable symTab) {
+        FnSym sym = (FnSym)myId.sym();  // null if multiply declared
 
         symTab.setGlobalScope(false);
 	symTab.setOffset(0);
@@ -668,15 +1106,72 @@ class FnDeclNode extends DeclNode {
                                " in FnDeclNode.nameAnalysis");
             System.exit(-1);
         }
+    }
 
-        return null;
+    /**
+     * nameAnalysisInline
+     * Given a symbol table symTab whose outermost scope is the global one,
+     * process the formals and body of this function, a copy made by
+     * Inliner, as locals of the function it is inlined into: they take the
+     * slots of its frame from offset down. If saveSp, one more slot is
+     * taken for the stack pointer (see genInline). Returns the offset of
+     * the first slot not taken.
+     */
+    public int nameAnalysisInline(SymTable symTab, int offset, boolean saveSp) {
+        symTab.setOffset(offset);
+        symTab.addScope();
+        myFormalsList.nameAnalysis(symTab);
+        myBody.nameAnalysis(symTab);
+        offset = symTab.getOffset();
+        if (saveSp) {
+            mySpSlot = offset;
+            offset -= 4;
+        }
+        return offset;
+    }
+
+    public int lineNum() {
+        return myId.lineNum();
+    }
+
+    /**
+     * Set the key of this function in ProgramNode.cache.
+     */
+    public void setCacheKey(String key) {
+        myCacheKey = key;
     }
 
     /**
      * typeCheck
+     * With a FnCache, a function whose entry already has code or messages
+     * is not checked again; its saved messages are printed instead.
      */
     public void typeCheck() {
+        FnCache cache = ProgramNode.cache;
+        if (cache == null || myCacheKey == null) {
+            myBody.typeCheck(myType.type());
+            return;
+        }
+
+        FnCache.Entry e = cache.lookup(myCacheKey);
+        if (e != null && (e.code != null || !e.msgs.isEmpty())) {
+            myCached = e;
+            ErrMsg.replay(e.msgsAt(lineNum()));
+            return;
+        }
+
+        ErrMsg.startBuffering();
         myBody.typeCheck(myType.type());
+        String msgs = ErrMsg.stopBuffering();
+        ErrMsg.flush(msgs);
+        if (!msgs.isEmpty()) {
+            cache.store(myCacheKey, new FnCache.Entry(lineNum(), msgs, null,
+                            Collections.<String, String>emptyMap()));
+        }
+    }
+
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myType, myId, myFormalsList, myBody);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -691,8 +1186,52 @@ class FnDeclNode extends DeclNode {
         p.println("}\n");
     }
 
+    /**
+     * codeGen
+     * With a FnCache, reuse the code saved for this function, or save the
+     * code generated now. With -sched the code of the function goes
+     * through the Scheduler before it is written.
+     */
     @Override
     public void codeGen() {
+        if (myCached != null && myCached.code != null) {
+            Codegen.emit(myCached.code);
+            for (Map.Entry<String, String> s : myCached.strings.entrySet()) {
+                Codegen.addString(s.getKey(), s.getValue());
+            }
+            return;
+        }
+
+        FnCache cache = ProgramNode.cache;
+        if ((cache == null || myCacheKey == null)
+            && Scheduler.mode == Scheduler.OFF) {
+            genCode();
+            return;
+        }
+
+        Codegen.startBuffering();
+        Map<String, String> strings = genCode();
+        String code = Codegen.stopBuffering();
+        if (Scheduler.mode != Scheduler.OFF) {
+            code = Scheduler.schedule(code);
+        }
+        if (cache != null && myCacheKey != null) {
+            cache.store(myCacheKey, new FnCache.Entry(lineNum(), "", code, strings));
+        }
+        Codegen.emit(code);
+    }
+
+    /**
+     * Generate the code of this function.
+     * Returns the string literals it uses (literal -> label).
+     */
+    private Map<String, String> genCode() {
+        DeadCode.eliminate((FnSym)myId.sym(), myFormalsList, myBody);
+        Inliner.inline((FnSym)myId.sym(), myBody);
+        Codegen.enterFunction(myId.name());
+        // main ends the program instead of returning, so it has no tail calls
+        String entryLab = myId.isMain() ? null : markTailCalls();
+
         //generate preamble here
         int paramSize = myId.paramSize();
         int localSize = myId.localSize();
@@ -711,6 +1250,9 @@ class FnDeclNode extends DeclNode {
         Codegen.generate("subu", Codegen.SP, Codegen.SP,4);
         Codegen.generate("addu", Codegen.FP, Codegen.SP, paramSize+8);
         Codegen.generate("subu", Codegen.SP, Codegen.SP, localSize);
+        if (entryLab != null) {
+            Codegen.genLabel(entryLab);
+        }
 
 
 
@@ -733,6 +1275,66 @@ class FnDeclNode extends DeclNode {
             Codegen.generate("syscall");
         } else Codegen.generate("jr", Codegen.RA);
 
+        return Codegen.exitFunction();
+    }
+
+    /**
+     * Make the returns of the body that return a call tail calls.
+     * Returns the label to put after the prologue if one of them calls
+     * this function itself, else null.
+     */
+    private String markTailCalls() {
+        List<ReturnStmtNode> returns = new ArrayList<ReturnStmtNode>();
+        myBody.walk(new ASTVisitor() {
+            public boolean enter(ASTnode node) {
+                if (node instanceof ReturnStmtNode
+                    && ((ReturnStmtNode)node).tailCall() != null) {
+                    returns.add((ReturnStmtNode)node);
+                }
+                return !(node instanceof ExpNode);
+            }
+        });
+
+        String entryLab = null;
+        for (ReturnStmtNode ret : returns) {
+            if (((IdNode)ret.tailCall().children().get(0)).sym() == myId.sym()) {
+                entryLab = Codegen.nextLabel();
+                break;
+            }
+        }
+        for (ReturnStmtNode ret : returns) {
+            ret.setTailCall((FnSym)myId.sym(), entryLab);
+        }
+        return entryLab;
+    }
+
+    /**
+     * genInline
+     * Generate this function, a copy made by Inliner, in place of a call
+     * with arguments args: the arguments are stored into the slots of the
+     * formals, and a return goes to the end of the code, where the value
+     * is pushed as a call would. The exit code of a function drops what
+     * its statements leave on the stack; here the stack pointer is saved
+     * and restored instead, if any statement does.
+     */
+    public void genInline(ExpListNode args) {
+        args.codeGen();
+        List<? extends ASTnode> formals = myFormalsList.children();
+        for (int k = formals.size() - 1; k >= 0; k--) {
+            Codegen.genPop(Codegen.T0);
+            ((IdNode)formals.get(k).children().get(1)).genStore(Codegen.T0, null);
+        }
+        if (mySpSlot != 0) {
+            Codegen.generateIndexed("sw", Codegen.SP, Codegen.FP, mySpSlot);
+        }
+
+        String returnLab = Codegen.nextLabel();
+        myBody.codeGen(returnLab);
+        Codegen.genLabel(returnLab);
+        if (mySpSlot != 0) {
+            Codegen.generateIndexed("lw", Codegen.SP, Codegen.FP, mySpSlot);
+        }
+        Codegen.genPush(Codegen.V0);
     }
 
     // 4 kids
@@ -740,6 +1342,10 @@ class FnDeclNode extends DeclNode {
     private IdNode myId;
     private FormalsListNode myFormalsList;
     private FnBodyNode myBody;
+
+    private String myCacheKey;      // key in ProgramNode.cache, if any
+    private FnCache.Entry myCached; // entry reused by typeCheck
+    private int mySpSlot;           // slot of the saved $sp of an inlined copy
 }
 
 class FormalDeclNode extends DeclNode {
@@ -808,6 +1414,14 @@ class FormalDeclNode extends DeclNode {
         return sym;
     }
 
+    public int lineNum() {
+        return myId.lineNum();
+    }
+
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myType, myId);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         myType.unparse(p, 0);
         p.print(" ");
@@ -859,7 +1473,7 @@ class StructDeclNode extends DeclNode {
             try {   // add entry to symbol table
                 SymTable structSymTab = new SymTable();
                 myDeclList.nameAnalysis(structSymTab, symTab);
-                StructDefSym sym = new StructDefSym(structSymTab);
+                StructDefSym sym = new StructDefSym(structSymTab, layOut());
                 symTab.addDecl(name, sym);
                 myId.link(sym);
             } catch (DuplicateSymException ex) {
@@ -880,6 +1494,33 @@ class StructDeclNode extends DeclNode {
         return null;
     }
 
+    /**
+     * layOut
+     * Give each field its byte offset in a variable of this struct type,
+     * in declaration order, and return the size of such a variable. A
+     * field of a struct type is laid out inline, so a.b.c is at a constant
+     * offset from the start of a.
+     */
+    private int layOut() {
+        int size = 0;
+        for (ASTnode node : myDeclList.children()) {
+            VarDeclNode decl = (VarDeclNode)node;
+            if (decl.sym() != null) {
+                decl.sym().setOffset(size);
+                size += decl.size();
+            }
+        }
+        return size;
+    }
+
+    public int lineNum() {
+        return myId.lineNum();
+    }
+
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myId, myDeclList);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         p.print("struct ");
@@ -969,6 +1610,10 @@ class StructNode extends TypeNode {
         return new StructType(myId);
     }
 
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myId);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("struct ");
         p.print(myId.name());
@@ -992,6 +1637,7 @@ abstract class StmtNode extends ASTnode {
 class AssignStmtNode extends StmtNode {
     public AssignStmtNode(AssignNode assign) {
         myAssign = assign;
+        nest(assign, assign);
     }
 
     /**
@@ -1009,6 +1655,10 @@ class AssignStmtNode extends StmtNode {
         myAssign.typeCheck();
     }
 
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myAssign);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         myAssign.unparse(p, -1); // no parentheses
@@ -1027,6 +1677,7 @@ class AssignStmtNode extends StmtNode {
 class PostIncStmtNode extends StmtNode {
     public PostIncStmtNode(ExpNode exp) {
         myExp = exp;
+        nest(exp, exp);
     }
 
     /**
@@ -1049,6 +1700,10 @@ class PostIncStmtNode extends StmtNode {
         }
     }
 
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myExp);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         myExp.unparse(p, 0);
@@ -1058,12 +1713,11 @@ class PostIncStmtNode extends StmtNode {
     @Override
     public void codeGen(String returnLab) {
         myExp.codeGen();//value should on the stack
-        ((IdNode)myExp).genAddr();  //push addr on the stack
 
-        Codegen.genPop(Codegen.T0); //t0 has address
         Codegen.genPop(Codegen.T1); //t1 has value
         Codegen.generate("add", Codegen.T1,Codegen.T1,"1" );   //do arithmetic
-        Codegen.generate("sw", Codegen.T1, "("+Codegen.T0+")");
+        myExp.genStore(Codegen.T1, null);
+        Loops.genUpdates(this);
         Codegen.genPush(Codegen.T1);//push the val on the stack
 
     }
@@ -1075,6 +1729,7 @@ class PostIncStmtNode extends StmtNode {
 class PostDecStmtNode extends StmtNode {
     public PostDecStmtNode(ExpNode exp) {
         myExp = exp;
+        nest(exp, exp);
     }
 
     /**
@@ -1097,6 +1752,10 @@ class PostDecStmtNode extends StmtNode {
         }
     }
 
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myExp);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         myExp.unparse(p, 0);
@@ -1105,12 +1764,11 @@ class PostDecStmtNode extends StmtNode {
 
     public void codeGen(String returnLab) {
         myExp.codeGen();//value should on the stack
-        ((IdNode)myExp).genAddr();  //push addr on the stack
 
-        Codegen.genPop(Codegen.T0); //t0 has address
         Codegen.genPop(Codegen.T1); //t1 has value
         Codegen.generate("sub", Codegen.T1,Codegen.T1,"1" );   //do arithmetic
-        Codegen.generate("sw", Codegen.T1, "("+Codegen.T0+")");
+        myExp.genStore(Codegen.T1, null);
+        Loops.genUpdates(this);
         Codegen.genPush(Codegen.T1);//push the val on the stack
 
     }
@@ -1122,6 +1780,7 @@ class PostDecStmtNode extends StmtNode {
 class ReadStmtNode extends StmtNode {
     public ReadStmtNode(ExpNode e) {
         myExp = e;
+        nest(e, e);
     }
 
     /**
@@ -1154,6 +1813,10 @@ class ReadStmtNode extends StmtNode {
         }
     }
 
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myExp);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         p.print("cin >> ");
@@ -1166,9 +1829,7 @@ class ReadStmtNode extends StmtNode {
 
         Codegen.generate("li", Codegen.V0,5);
         Codegen.generate("syscall");
-        ((IdNode)myExp).genAddr();
-        Codegen.genPop(Codegen.T1);
-        Codegen.generate("sw", Codegen.V0, "("+Codegen.T1+")");
+        myExp.genStore(Codegen.V0, null);
 
 
 
@@ -1183,6 +1844,7 @@ class ReadStmtNode extends StmtNode {
 class WriteStmtNode extends StmtNode {
     public WriteStmtNode(ExpNode exp) {
         myExp = exp;
+        nest(exp, exp);
     }
 
     /**
@@ -1221,6 +1883,10 @@ class WriteStmtNode extends StmtNode {
         }
     }
 
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myExp);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         p.print("cout << ");
@@ -1251,6 +1917,7 @@ class IfStmtNode extends StmtNode {
         myDeclList = dlist;
         myExp = exp;
         myStmtList = slist;
+        nest(exp, exp, slist);
     }
 
     /**
@@ -1277,16 +1944,10 @@ class IfStmtNode extends StmtNode {
 
     @Override
     public void codeGen(String returnLab) {
-        myExp.codeGen();
-        Codegen.genPop(Codegen.T0); //load the result of exp
-
-        String trueLab = Codegen.nextLabel();
         String doneLab = Codegen.nextLabel();
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, doneLab);
-        Codegen.genLabel(trueLab);
+        myExp.genJumpCode(null, doneLab);   //true falls into the body
         myStmtList.codeGen(returnLab);
         Codegen.genLabel(doneLab);
-
     }
 
     /**
@@ -1303,6 +1964,10 @@ class IfStmtNode extends StmtNode {
         myStmtList.typeCheck(retType);
     }
 
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myExp, myDeclList, myStmtList);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         p.print("if (");
@@ -1329,6 +1994,7 @@ class IfElseStmtNode extends StmtNode {
         myThenStmtList = slist1;
         myElseDeclList = dlist2;
         myElseStmtList = slist2;
+        nest(exp, exp, slist1, slist2);
     }
 
     /**
@@ -1381,6 +2047,11 @@ class IfElseStmtNode extends StmtNode {
         myElseStmtList.typeCheck(retType);
     }
 
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myExp, myThenDeclList, myThenStmtList,
+                             myElseDeclList, myElseStmtList);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         p.print("if (");
@@ -1400,14 +2071,9 @@ class IfElseStmtNode extends StmtNode {
 
     @Override
     public void codeGen(String returnLab) {
-        myExp.codeGen();
-        Codegen.genPop(Codegen.T0); //load the result of exp
-
-        String trueLab = Codegen.nextLabel();
         String falseLab = Codegen.nextLabel();
         String doneLab = Codegen.nextLabel();
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, falseLab);
-        Codegen.genLabel(trueLab);
+        myExp.genJumpCode(null, falseLab);  //true falls into the then part
         myThenStmtList.codeGen(returnLab);
         Codegen.generate("b",  doneLab);
         Codegen.genLabel(falseLab);
@@ -1428,6 +2094,7 @@ class WhileStmtNode extends StmtNode {
         myExp = exp;
         myDeclList = dlist;
         myStmtList = slist;
+        nest(exp, exp, slist);
     }
 
     /**
@@ -1466,6 +2133,10 @@ class WhileStmtNode extends StmtNode {
         myStmtList.typeCheck(retType);
     }
 
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myExp, myDeclList, myStmtList);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         p.print("while (");
@@ -1479,19 +2150,15 @@ class WhileStmtNode extends StmtNode {
 
     @Override
     public void codeGen(String returnLab) {
+        List<ExpNode> hoisted = Loops.enter(this);  //preheader
         String conditionLab = Codegen.nextLabel();
         Codegen.genLabel(conditionLab);
-        myExp.codeGen();
-        Codegen.genPop(Codegen.T0); //load the result of exp
-
-
         String doneLab = Codegen.nextLabel();
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, doneLab);
-
-
+        myExp.genJumpCode(null, doneLab);   //true falls into the body
         myStmtList.codeGen(returnLab);
         Codegen.generate("b",  conditionLab);
         Codegen.genLabel(doneLab);
+        Loops.leave(hoisted);
 
     }
 
@@ -1506,6 +2173,7 @@ class RepeatStmtNode extends StmtNode {
         myExp = exp;
         myDeclList = dlist;
         myStmtList = slist;
+        nest(exp, exp, slist);
     }
 
     /**
@@ -1544,6 +2212,10 @@ class RepeatStmtNode extends StmtNode {
         myStmtList.typeCheck(retType);
     }
 
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myExp, myDeclList, myStmtList);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         p.print("repeat (");
@@ -1570,6 +2242,7 @@ class RepeatStmtNode extends StmtNode {
 class CallStmtNode extends StmtNode {
     public CallStmtNode(CallExpNode call) {
         myCall = call;
+        nest(call, call);
     }
 
     /**
@@ -1587,6 +2260,10 @@ class CallStmtNode extends StmtNode {
         myCall.typeCheck();
     }
 
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myCall);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         myCall.unparse(p, indent);
@@ -1607,6 +2284,7 @@ class CallStmtNode extends StmtNode {
 class ReturnStmtNode extends StmtNode {
     public ReturnStmtNode(ExpNode exp) {
         myExp = exp;
+        nest(exp, exp);
     }
 
     /**
@@ -1625,9 +2303,48 @@ class ReturnStmtNode extends StmtNode {
     }
     @Override
     public void codeGen(String returnLab) {
-        myExp.codeGen();
-        Codegen.genPop(Codegen.V0);
-        Codegen.generate("b",  returnLab);
+        if (myTailOf != null) {
+            ((CallExpNode)myExp).genTailCall(myTailOf, myEntryLab);
+            return;
+        }
+        if (myExp != null) {
+            myExp.codeGen();
+            Codegen.genPop(Codegen.V0);
+        }
+        if (!myLast) {  // else the exit code comes next anyway
+            Codegen.generate("b",  returnLab);
+        }
+    }
+
+    /**
+     * Mark this return as the last statement of its function.
+     */
+    public void setLast() {
+        myLast = true;
+    }
+
+    /**
+     * Return the call whose value this returns, if it can be a tail call:
+     * it is not inlined and does not call main. Else return null.
+     */
+    public CallExpNode tailCall() {
+        if (!(myExp instanceof CallExpNode)) {
+            return null;
+        }
+        CallExpNode call = (CallExpNode)myExp;
+        if (call.inlined() != null || ((IdNode)call.children().get(0)).isMain()) {
+            return null;
+        }
+        return call;
+    }
+
+    /**
+     * Make this return a tail call (see CallExpNode.genTailCall) from
+     * the function with symbol fn, whose body starts at entryLab.
+     */
+    public void setTailCall(FnSym fn, String entryLab) {
+        myTailOf = fn;
+        myEntryLab = entryLab;
     }
 
     /**
@@ -1656,6 +2373,13 @@ class ReturnStmtNode extends StmtNode {
 
     }
 
+    public List<? extends ASTnode> children() {
+        if (myExp == null) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(myExp);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         p.print("return");
@@ -1668,6 +2392,9 @@ class ReturnStmtNode extends StmtNode {
 
     // 1 kid
     private ExpNode myExp; // possibly null
+    private boolean myLast = false;
+    private FnSym myTailOf;     // function it tail calls from, if any
+    private String myEntryLab;  // label after the prologue of myTailOf
 }
 
 // **********************************************************************
@@ -1685,9 +2412,55 @@ abstract class ExpNode extends ASTnode {
     abstract public int charNum();
 
     abstract public void codeGen();
-    public void genJumpCode(String trueLab, String falseLab)
-    {
 
+    /**
+     * Generate code that branches to trueLab if this (bool) expression is
+     * true and to falseLab if it is false. One of the labels may be null:
+     * then that case falls through to the code after. This version tests
+     * the value codeGen computes.
+     */
+    public void genJumpCode(String trueLab, String falseLab) {
+        codeGen();
+        Codegen.genPop(Codegen.T0);
+        genBranch(Codegen.T0, trueLab, falseLab);
+    }
+
+    /**
+     * Generate the branches of genJumpCode on the bool value in reg.
+     */
+    protected static void genBranch(String reg, String trueLab, String falseLab) {
+        if (trueLab == null) {
+            Codegen.generate("beqz", reg, falseLab);
+            return;
+        }
+        Codegen.generate("bnez", reg, trueLab);
+        if (falseLab != null) {
+            Codegen.generate("b", falseLab);
+        }
+    }
+
+    /**
+     * Push the address of this location (an IdNode or a dot-access).
+     */
+    public void genAddr() {
+        throw new IllegalStateException("cannot take the address of a non-location");
+    }
+
+    /**
+     * Store register reg into this location (an IdNode or a dot-access).
+     * vn is the number of the value stored, if known (see LocalValues).
+     */
+    public void genStore(String reg, Integer vn) {
+        throw new IllegalStateException("cannot store into a non-location");
+    }
+
+    /**
+     * Return the value number of this expression (see LocalValues), or
+     * null if it is not pure: it may have side effects or its value may
+     * depend on them.
+     */
+    public Integer valueNumber() {
+        return null;
     }
 }
 
@@ -1712,6 +2485,13 @@ class IntLitNode extends ExpNode {
         return myCharNum;
     }
 
+    /**
+     * Return the value of this literal.
+     */
+    public int value() {
+        return myIntVal;
+    }
+
     /**
      * typeCheck
      */
@@ -1731,6 +2511,11 @@ class IntLitNode extends ExpNode {
 
     }
 
+    @Override
+    public Integer valueNumber() {
+        return LocalValues.number("li " + myIntVal, false);
+    }
+
     private int myLineNum;
     private int myCharNum;
     private int myIntVal;
@@ -1771,16 +2556,8 @@ class StringLitNode extends ExpNode {
     @Override
     public void codeGen() {
 
-        String label = Codegen.findLabel(myStrVal);
-        if(label == null)   //already exist.
-        {
-            label = Codegen.nextLabel();
-            Codegen.generateDirectory(".data");
-            Codegen.generateLabeled(label,".asciiz","addr for a string literal" ," "+myStrVal);
-            Codegen.addLabel(myStrVal, label);
-        }
-
-        Codegen.generateDirectory(".text");
+        // the characters themselves go in the .data section at the end
+        String label = Codegen.stringLabel(myStrVal);
         Codegen.generateWithComment("la","String Lit Node",Codegen.T0,label);
         Codegen.genPush(Codegen.T0);
 
@@ -1825,16 +2602,14 @@ class TrueNode extends ExpNode {
     @Override
     public void codeGen() {
         Codegen.generateWithComment("li","True Node",Codegen.T0,Codegen.TRUE);
-        Codegen.genPush(Codegen.T0);
-    }
-
-    public void genJumpCode(String trueLab, String falseLab)
-    {
-        codeGen();  //calculate the value on the stack
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, falseLab);
-        Codegen.generate("beq", Codegen.T0, Codegen.TRUE, trueLab);
+        Codegen.genPush(Codegen.T0);
+    }
 
+    @Override
+    public void genJumpCode(String trueLab, String falseLab) {
+        if (trueLab != null) {
+            Codegen.generate("b", trueLab);
+        }
     }
 
     private int myLineNum;
@@ -1847,13 +2622,11 @@ class FalseNode extends ExpNode {
         myCharNum = charNum;
     }
 
-    public void genJumpCode(String trueLab, String falseLab)
-    {
-        codeGen();  //calculate the value on the stack
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, falseLab);
-        Codegen.generate("beq", Codegen.T0, Codegen.TRUE, trueLab);
-
+    @Override
+    public void genJumpCode(String trueLab, String falseLab) {
+        if (falseLab != null) {
+            Codegen.generate("b", falseLab);
+        }
     }
 
     /**
@@ -2015,37 +2788,71 @@ class IdNode extends ExpNode {
 
     @Override
     public void codeGen() {
-        if(mySym.isGlobal()){   //load mem addr to t0
-            Codegen.generate("lw", Codegen.T0, "_"+myStrVal);
-        }else{
-            int offset = mySym.getOffset();
-            Codegen.generateIndexed("lw", Codegen.T0, Codegen.FP, offset);
+        //push to the stack
+        Codegen.genPush(genLoad());
+    }
+
+    /**
+     * Load the value of this variable into a register, if it is not in
+     * one yet, and return the register.
+     */
+    private String genLoad() {
+        String reg = Loops.register(this);
+        if (reg != null) {  //kept in a register for the loop
+            return reg;
+        }
+        Integer vn = LocalValues.valueOf(this);
+        reg = LocalValues.register(vn);
+        if (reg == null) {  //not loaded yet in this block
+            reg = LocalValues.allocate(vn);
+            genAccess("lw", reg, 0);
         }
+        return reg;
+    }
 
-        //push to the stack
-        Codegen.genPush(Codegen.T0);
+    @Override
+    public Integer valueNumber() {
+        return LocalValues.load(location(0));
     }
 
+    @Override
     public void genAddr()
     {
-        if(mySym.isGlobal()){   //load mem addr to t0
-            Codegen.generate("la", Codegen.T0, "_"+myStrVal);
-        }else{
-            int offset = mySym.getOffset();
-            Codegen.generateIndexed("la", Codegen.T0, Codegen.FP, offset);
-        }
+        genAccess("la", Codegen.T0, 0);  //load mem addr to t0
 
         //push to the stack
         Codegen.genPush(Codegen.T0);
     }
 
-    public void genJumpCode(String trueLab, String falseLab)
-    {
-        codeGen();  //calculate the value on the stack
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, falseLab);
-        Codegen.generate("beq", Codegen.T0, Codegen.TRUE, trueLab);
+    @Override
+    public void genStore(String reg, Integer vn) {
+        genAccess("sw", reg, 0);
+        LocalValues.store(location(0), vn);
+    }
+
+    /**
+     * Generate "opcode reg, location(offset)".
+     */
+    public void genAccess(String opcode, String reg, int offset) {
+        Codegen.generate(opcode, reg, location(offset));
+    }
+
+    /**
+     * Return the address of the word offset bytes into this variable: a
+     * label for a global, an offset from FP for a local. Fields of struct
+     * variables are accessed with the field's offset, so no address is
+     * computed at run time.
+     */
+    public String location(int offset) {
+        if(mySym.isGlobal()){
+            return "_"+myStrVal+(offset == 0 ? "" : "+"+offset);
+        }
+        return (mySym.getOffset()+offset)+"("+Codegen.FP+")";
+    }
 
+    @Override
+    public void genJumpCode(String trueLab, String falseLab) {
+        genBranch(genLoad(), trueLab, falseLab);
     }
 
     private int myLineNum;
@@ -2059,6 +2866,7 @@ class DotAccessExpNode extends ExpNode {
         myLoc = loc;
         myId = id;
         mySym = null;
+        nest(this, loc);
     }
 
     /**
@@ -2188,15 +2996,88 @@ class DotAccessExpNode extends ExpNode {
         return myId.typeCheck();
     }
 
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myLoc, myId);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         myLoc.unparse(p, 0);
         p.print(".");
         myId.unparse(p, 0);
     }
 
+    /**
+     * Return the struct variable this chain of dot-accesses starts at.
+     */
+    private IdNode root() {
+        if (myLoc instanceof IdNode) {
+            return (IdNode)myLoc;
+        }
+        return ((DotAccessExpNode)myLoc).root();
+    }
+
+    /**
+     * Return the byte offset of the accessed field from the start of
+     * root(): the sum of the offsets of the fields along the chain.
+     */
+    private int fieldOffset() {
+        int offset = myId.sym().getOffset();
+        if (myLoc instanceof DotAccessExpNode) {
+            offset += ((DotAccessExpNode)myLoc).fieldOffset();
+        }
+        return offset;
+    }
+
+    /**
+     * Return the address of the accessed field (see IdNode.location).
+     */
+    public String location() {
+        return root().location(fieldOffset());
+    }
+
     @Override
     public void codeGen() {
+        Codegen.genPush(genLoad());
+    }
+
+    /**
+     * Load the value of the field into a register, if it is not in one
+     * yet, and return the register.
+     */
+    private String genLoad() {
+        String reg = Loops.register(this);
+        if (reg != null) {
+            return reg;
+        }
+        Integer vn = LocalValues.valueOf(this);
+        reg = LocalValues.register(vn);
+        if (reg == null) {
+            reg = LocalValues.allocate(vn);
+            root().genAccess("lw", reg, fieldOffset());
+        }
+        return reg;
+    }
+
+    @Override
+    public Integer valueNumber() {
+        return LocalValues.load(location());
+    }
 
+    @Override
+    public void genAddr() {
+        root().genAccess("la", Codegen.T0, fieldOffset());
+        Codegen.genPush(Codegen.T0);
+    }
+
+    @Override
+    public void genStore(String reg, Integer vn) {
+        root().genAccess("sw", reg, fieldOffset());
+        LocalValues.store(location(), vn);
+    }
+
+    @Override
+    public void genJumpCode(String trueLab, String falseLab) {
+        genBranch(genLoad(), trueLab, falseLab);
     }
 
     // 2 kids
@@ -2210,6 +3091,7 @@ class AssignNode extends ExpNode {
     public AssignNode(ExpNode lhs, ExpNode exp) {
         myLhs = lhs;
         myExp = exp;
+        nest(this, lhs, exp);
     }
 
     /**
@@ -2273,6 +3155,10 @@ class AssignNode extends ExpNode {
         return retType;
     }
 
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myLhs, myExp);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         if (indent != -1)  p.print("(");
         myLhs.unparse(p, 0);
@@ -2283,13 +3169,13 @@ class AssignNode extends ExpNode {
 
     @Override
     public void codeGen() {
+        Integer vn = LocalValues.valueOf(myExp);
         myExp.codeGen();    //the res of the idNode
-        ((IdNode)myLhs).genAddr();    //the addr should be on the stack
 
-        Codegen.genPop(Codegen.T0); //t0 has addr
         Codegen.genPop(Codegen.T1); //t1 has the res
+        myLhs.genStore(Codegen.T1, vn);  //sw straight to the variable or field
+        Loops.genUpdates(this);
         //need to leave the val on top stack
-        Codegen.generate("sw", Codegen.T1, "("+Codegen.T0+")");
         Codegen.genPush(Codegen.T1);
 
 
@@ -2306,11 +3192,12 @@ class CallExpNode extends ExpNode {
     public CallExpNode(IdNode name, ExpListNode elist) {
         myId = name;
         myExpList = elist;
+        nest(this, elist);
     }
 
     public CallExpNode(IdNode name) {
         myId = name;
-        myExpList = new ExpListNode(new LinkedList<ExpNode>());
+        myExpList = new ExpListNode(new ArrayList<ExpNode>());
     }
 
     /**
@@ -2367,6 +3254,10 @@ class CallExpNode extends ExpNode {
     }
 
     // ** unparse **
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myId, myExpList);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         myId.unparse(p, 0);
         p.print("(");
@@ -2376,8 +3267,70 @@ class CallExpNode extends ExpNode {
         p.print(")");
     }
 
+    /**
+     * Have this call generate copy, a copy of the callee made by Inliner,
+     * instead of calling it.
+     */
+    public void setInline(FnDeclNode copy) {
+        myInline = copy;
+    }
+
+    /**
+     * Return the copy of the callee generated in place of this call, or
+     * null if it is a real call.
+     */
+    public FnDeclNode inlined() {
+        return myInline;
+    }
+
+    /**
+     * genTailCall
+     * Generate this call as the value returned by the function with
+     * symbol caller, reusing its frame:
+     * - a call of caller itself stores the arguments into the formals,
+     *   drops the locals' temporaries and branches to entryLab, right
+     *   after the prologue, so it needs no new frame at all
+     * - another call moves the arguments over those of caller, restores
+     *   the return address and frame pointer caller was called with and
+     *   jumps to the callee, which returns straight to the caller of
+     *   caller
+     * The arguments are all evaluated before any formal is overwritten.
+     */
+    public void genTailCall(FnSym caller, String entryLab) {
+        myExpList.codeGen();
+        int n = myExpList.size();
+        int paramSize = caller.getParamSize();
+        if (myId.sym() == caller) {
+            for (int k = n - 1; k >= 0; k--) {
+                Codegen.genPop(Codegen.T0);
+                Codegen.generateIndexed("sw", Codegen.T0, Codegen.FP, -4 * k);
+            }
+            Codegen.generate("subu", Codegen.SP, Codegen.FP,
+                             paramSize + 8 + caller.getLocalSize());
+            Codegen.generate("b", entryLab);
+            return;
+        }
+
+        // the arguments may overwrite the saved registers, so they are
+        // loaded first; each argument moves up, so copying the first one
+        // first never overwrites one not yet copied
+        Codegen.generateIndexed("lw", Codegen.RA, Codegen.FP, -paramSize);
+        Codegen.generateIndexed("lw", Codegen.T1, Codegen.FP, -(paramSize + 4));
+        for (int k = 0; k < n; k++) {
+            Codegen.generateIndexed("lw", Codegen.T0, Codegen.SP, 4 * (n - k));
+            Codegen.generateIndexed("sw", Codegen.T0, Codegen.FP, -4 * k);
+        }
+        Codegen.generate("subu", Codegen.SP, Codegen.FP, 4 * n);
+        Codegen.generate("move", Codegen.FP, Codegen.T1);
+        Codegen.generate("j", "_" + myId.name());
+    }
+
     @Override
     public void codeGen() {
+        if (myInline != null) {
+            myInline.genInline(myExpList);
+            return;
+        }
 
         myExpList.codeGen();
         myId.genJumpAndLink();
@@ -2387,11 +3340,14 @@ class CallExpNode extends ExpNode {
     // 2 kids
     private IdNode myId;
     private ExpListNode myExpList;  // possibly null
+
+    private FnDeclNode myInline;    // see Inliner
 }
 
 abstract class UnaryExpNode extends ExpNode {
     public UnaryExpNode(ExpNode exp) {
         myExp = exp;
+        nest(this, exp);
     }
 
     /**
@@ -2418,6 +3374,10 @@ abstract class UnaryExpNode extends ExpNode {
         myExp.nameAnalysis(symTab);
     }
 
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myExp);
+    }
+
     // one child
     protected ExpNode myExp;
 }
@@ -2426,6 +3386,7 @@ abstract class BinaryExpNode extends ExpNode {
     public BinaryExpNode(ExpNode exp1, ExpNode exp2) {
         myExp1 = exp1;
         myExp2 = exp2;
+        nest(this, exp1, exp2);
     }
 
     /**
@@ -2454,6 +3415,30 @@ abstract class BinaryExpNode extends ExpNode {
         myExp2.nameAnalysis(symTab);
     }
 
+    public List<? extends ASTnode> children() {
+        return Arrays.asList(myExp1, myExp2);
+    }
+
+    /**
+     * genJumpCode for a comparison: branch is the instruction that
+     * branches if it holds, inverse the one that branches if not.
+     */
+    protected void genCompare(String branch, String inverse,
+                              String trueLab, String falseLab) {
+        myExp1.codeGen();
+        myExp2.codeGen();
+        Codegen.genPop(Codegen.T1); //t1 has exp2val
+        Codegen.genPop(Codegen.T0); //t0 has exp1val
+        if (trueLab == null) {
+            Codegen.generate(inverse, Codegen.T0, Codegen.T1, falseLab);
+            return;
+        }
+        Codegen.generate(branch, Codegen.T0, Codegen.T1, trueLab);
+        if (falseLab != null) {
+            Codegen.generate("b", falseLab);
+        }
+    }
+
     // two kids
     protected ExpNode myExp1;
     protected ExpNode myExp2;
@@ -2496,10 +3481,23 @@ class UnaryMinusNode extends UnaryExpNode {
 
     @Override
     public void codeGen() {
-        myExp.codeGen();//value should on the stack
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("neg", Codegen.T0,Codegen.T0 );
-        Codegen.genPush(Codegen.T0);
+        if (Loops.genHoisted(this)) {
+            return;
+        }
+        Integer vn = LocalValues.valueOf(this);
+        String reg = LocalValues.register(vn);
+        if (reg == null) {
+            myExp.codeGen();//value should on the stack
+            Codegen.genPop(Codegen.T0);
+            reg = LocalValues.allocate(vn);
+            Codegen.generate("neg", reg,Codegen.T0 );
+        }
+        Codegen.genPush(reg);
+    }
+
+    @Override
+    public Integer valueNumber() {
+        return LocalValues.number("neg", false, LocalValues.valueOf(myExp));
     }
 }
 
@@ -2544,13 +3542,9 @@ class NotNode extends UnaryExpNode {
         Codegen.genPush(Codegen.T0);//push the val on the stack
     }
 
-    public void genJumpCode(String trueLab, String falseLab)
-    {
-        codeGen();  //calculate the value on the stack
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, falseLab);
-        Codegen.generate("beq", Codegen.T0, Codegen.TRUE, trueLab);
-
+    @Override
+    public void genJumpCode(String trueLab, String falseLab) {
+        myExp.genJumpCode(falseLab, trueLab);
     }
 }
 
@@ -2563,6 +3557,66 @@ abstract class ArithmeticExpNode extends BinaryExpNode {
         super(exp1, exp2);
     }
 
+    /**
+     * Return the MIPS instruction for the operator.
+     */
+    abstract protected String opcode();
+
+    /**
+     * Return the operand whose value this expression always has (x * 1,
+     * 1 * x and x / 1), or null.
+     */
+    protected ExpNode identity() {
+        return null;
+    }
+
+    /**
+     * If an operand is a literal MulDiv can do the operator for, generate
+     * the value into a register and return it, else return null. vn is
+     * the number of the value.
+     */
+    protected String genByLiteral(Integer vn) {
+        return null;
+    }
+
+    @Override
+    public void codeGen() {
+        if (Loops.genHoisted(this)) {
+            return;
+        }
+        ExpNode same = identity();
+        if (same != null) {
+            same.codeGen();
+            return;
+        }
+        Integer vn = LocalValues.valueOf(this);
+        String reg = LocalValues.register(vn);
+        if (reg == null) {
+            reg = genByLiteral(vn);
+        }
+        if (reg == null) {  //not computed yet in this block
+            myExp2.codeGen();//value should on the stack
+            myExp1.codeGen();//value should on the stack
+            Codegen.genPop(Codegen.T0); //t0 has exp1val
+            Codegen.genPop(Codegen.T1); //t1 has exp2val
+            reg = LocalValues.allocate(vn);
+            Codegen.generate(opcode(), reg, Codegen.T0, Codegen.T1);   //do arithmetic
+        }
+        Codegen.genPush(reg);//push the val on the stack
+    }
+
+    @Override
+    public Integer valueNumber() {
+        ExpNode same = identity();
+        if (same != null) {
+            return LocalValues.valueOf(same);
+        }
+        String op = opcode();
+        return LocalValues.number(op, op.equals("add") || op.equals("mul"),
+                                  LocalValues.valueOf(myExp1),
+                                  LocalValues.valueOf(myExp2));
+    }
+
     /**
      * typeCheck
      */
@@ -2627,9 +3681,21 @@ abstract class LogicalExpNode extends BinaryExpNode {
         return retType;
     }
 
+    /**
+     * Compute the value (0 or 1) with the jumping code.
+     */
     @Override
     public void codeGen() {
+        String falseLab = Codegen.nextLabel();
+        String doneLab = Codegen.nextLabel();
 
+        genJumpCode(null, falseLab);
+        Codegen.generate("li", Codegen.T0, Codegen.TRUE);
+        Codegen.generate("b", doneLab);
+        Codegen.genLabel(falseLab);
+        Codegen.generate("li", Codegen.T0, Codegen.FALSE);
+        Codegen.genLabel(doneLab);
+        Codegen.genPush(Codegen.T0);
     }
 }
 
@@ -2735,16 +3801,8 @@ class PlusNode extends ArithmeticExpNode {
         p.print(")");
     }
 
-    @Override
-    public void codeGen() {
-        myExp2.codeGen();//value should on the stack
-        myExp1.codeGen();//value should on the stack
-
-        Codegen.genPop(Codegen.T0); //t0 has exp1val
-        Codegen.genPop(Codegen.T1); //t1 has exp2val
-        Codegen.generate("add", Codegen.T0,Codegen.T0,Codegen.T1 );   //do arithmetic
-        Codegen.genPush(Codegen.T0);//push the val on the stack
-
+    protected String opcode() {
+        return "add";
     }
 }
 
@@ -2760,16 +3818,8 @@ class MinusNode extends ArithmeticExpNode {
         myExp2.unparse(p, 0);
         p.print(")");
     }
-@Override
-    public void codeGen() {
-        myExp2.codeGen();//value should on the stack
-        myExp1.codeGen();//value should on the stack
-
-        Codegen.genPop(Codegen.T0); //t0 has exp1val
-        Codegen.genPop(Codegen.T1); //t1 has exp2val
-        Codegen.generate("sub", Codegen.T0,Codegen.T0,Codegen.T1 );   //do arithmetic
-        Codegen.genPush(Codegen.T0);//push the val on the stack
-
+    protected String opcode() {
+        return "sub";
     }
 }
 
@@ -2786,16 +3836,59 @@ class TimesNode extends ArithmeticExpNode {
         p.print(")");
     }
 
+    protected String opcode() {
+        return "mul";
+    }
+
+    /**
+     * Return the literal operand (the right one if both are), or null;
+     * see MulDiv.literal.
+     */
+    private ExpNode literal() {
+        if (MulDiv.literal(myExp2) != null) {
+            return myExp2;
+        }
+        return MulDiv.literal(myExp1) != null ? myExp1 : null;
+    }
+
+    /**
+     * Return the operand that is not literal().
+     */
+    private ExpNode other() {
+        return literal() == myExp2 ? myExp1 : myExp2;
+    }
+
     @Override
-    public void codeGen() {
-        myExp2.codeGen();//value should on the stack
-        myExp1.codeGen();//value should on the stack
+    protected ExpNode identity() {
+        ExpNode k = literal();
+        return k != null && MulDiv.literal(k) == 1 ? other() : null;
+    }
 
-        Codegen.genPop(Codegen.T0); //t0 has exp1val
-        Codegen.genPop(Codegen.T1); //t1 has exp2val
-        Codegen.generate("mul", Codegen.T0,Codegen.T0,Codegen.T1 );   //do arithmetic
-        Codegen.genPush(Codegen.T0);//push the val on the stack
+    @Override
+    protected String genByLiteral(Integer vn) {
+        ExpNode k = literal();
+        if (k == null || !MulDiv.times(MulDiv.literal(k))) {
+            return null;
+        }
+        int value = MulDiv.literal(k);
+        if (value != 0 || vn == null) { // x * 0 only skips a pure x
+            other().codeGen();
+            Codegen.genPop(Codegen.T0);
+        }
+        String reg = LocalValues.allocate(vn);
+        MulDiv.genTimes(reg, Codegen.T0, value);
+        return reg;
+    }
 
+    @Override
+    public Integer valueNumber() {
+        ExpNode k = literal();
+        if (k != null && MulDiv.literal(k) == 0) {
+            // the same value as the literal 0, if x is pure
+            return LocalValues.valueOf(other()) == null
+                ? null : LocalValues.number("li 0", false);
+        }
+        return super.valueNumber();
     }
 }
 
@@ -2812,16 +3905,27 @@ class DivideNode extends ArithmeticExpNode {
         p.print(")");
     }
 
-    @Override
-    public void codeGen() {
-        myExp2.codeGen();//value should on the stack
-        myExp1.codeGen();//value should on the stack
+    protected String opcode() {
+        return "div";
+    }
 
-        Codegen.genPop(Codegen.T0); //t0 has exp1val
-        Codegen.genPop(Codegen.T1); //t1 has exp2val
-        Codegen.generate("div", Codegen.T0, Codegen.T0,Codegen.T1 );   //do arithmetic
-        Codegen.genPush(Codegen.T0);//push the val on the stack
+    @Override
+    protected ExpNode identity() {
+        Integer k = MulDiv.literal(myExp2);
+        return k != null && k == 1 ? myExp1 : null;
+    }
 
+    @Override
+    protected String genByLiteral(Integer vn) {
+        Integer k = MulDiv.literal(myExp2);
+        if (k == null || !MulDiv.divide(k)) {
+            return null;
+        }
+        myExp1.codeGen();
+        Codegen.genPop(Codegen.T0);
+        String reg = LocalValues.allocate(vn);
+        MulDiv.genDivide(reg, Codegen.T0, k);
+        return reg;
     }
 }
 
@@ -2836,32 +3940,16 @@ class AndNode extends LogicalExpNode {
         p.print(" && ");
         myExp2.unparse(p, 0);
         p.print(")");
-    }
-    @Override
-    public void codeGen() {
-        String trueLab = Codegen.nextLabel();
-        String falseLab = Codegen.nextLabel();
-        String doneLab = Codegen.nextLabel();
-
-        genJumpCode(trueLab, falseLab);
-        Codegen.genLabel(falseLab);
-        Codegen.generate("li", Codegen.T0,0);
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, doneLab);
-        Codegen.genLabel(trueLab);
-        Codegen.generate("li", Codegen.T0,1);
-        Codegen.genLabel(doneLab);
-        Codegen.genPush(Codegen.T0);
-
-
-
     }
 
-    public void genJumpCode(String trueLab, String falseLab)
-    {
-        String newLab = Codegen.nextLabel();
-        myExp1.genJumpCode(newLab, falseLab);
-        Codegen.genLabel(newLab);
+    @Override
+    public void genJumpCode(String trueLab, String falseLab) {
+        String endLab = falseLab != null ? falseLab : Codegen.nextLabel();
+        myExp1.genJumpCode(null, endLab);   //true: on to exp2
         myExp2.genJumpCode(trueLab, falseLab);
+        if (falseLab == null) {
+            Codegen.genLabel(endLab);
+        }
     }
 }
 
@@ -2879,28 +3967,13 @@ class OrNode extends LogicalExpNode {
     }
 
     @Override
-    public void codeGen() {
-        String trueLab = Codegen.nextLabel();
-        String falseLab = Codegen.nextLabel();
-        String doneLab = Codegen.nextLabel();
-
-        genJumpCode(trueLab, falseLab);
-        Codegen.genLabel(falseLab);
-        Codegen.generate("li", Codegen.T0,0);
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, doneLab);
-        Codegen.genLabel(trueLab);
-        Codegen.generate("li", Codegen.T0,1);
-        Codegen.genLabel(doneLab);
-        Codegen.genPush(Codegen.T0);
-
-    }
-
-    public void genJumpCode(String trueLab, String falseLab)
-    {
-        String newLab = Codegen.nextLabel();
-        myExp1.genJumpCode(trueLab, newLab);
-        Codegen.genLabel(newLab);
+    public void genJumpCode(String trueLab, String falseLab) {
+        String endLab = trueLab != null ? trueLab : Codegen.nextLabel();
+        myExp1.genJumpCode(endLab, null);   //false: on to exp2
         myExp2.genJumpCode(trueLab, falseLab);
+        if (trueLab == null) {
+            Codegen.genLabel(endLab);
+        }
     }
 }
 
@@ -2934,13 +4007,9 @@ class EqualsNode extends EqualityExpNode {
         Codegen.genPush(Codegen.T0);//push the val on the stack
     }
 
-    public void genJumpCode(String trueLab, String falseLab)
-    {
-        codeGen();  //calculate the value on the stack
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, falseLab);
-        Codegen.generate("beq", Codegen.T0, Codegen.TRUE, trueLab);
-
+    @Override
+    public void genJumpCode(String trueLab, String falseLab) {
+        genCompare("beq", "bne", trueLab, falseLab);
     }
 }
 
@@ -2969,13 +4038,9 @@ class NotEqualsNode extends EqualityExpNode {
 
     }
 
-    public void genJumpCode(String trueLab, String falseLab)
-    {
-        codeGen();  //calculate the value on the stack
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, falseLab);
-        Codegen.generate("beq", Codegen.T0, Codegen.TRUE, trueLab);
-
+    @Override
+    public void genJumpCode(String trueLab, String falseLab) {
+        genCompare("bne", "beq", trueLab, falseLab);
     }
 }
 
@@ -3004,13 +4069,9 @@ class LessNode extends RelationalExpNode {
 
     }
 
-    public void genJumpCode(String trueLab, String falseLab)
-    {
-        codeGen();  //calculate the value on the stack
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, falseLab);
-        Codegen.generate("beq", Codegen.T0, Codegen.TRUE, trueLab);
-
+    @Override
+    public void genJumpCode(String trueLab, String falseLab) {
+        genCompare("blt", "bge", trueLab, falseLab);
     }
 }
 
@@ -3039,13 +4100,9 @@ class GreaterNode extends RelationalExpNode {
 
     }
 
-    public void genJumpCode(String trueLab, String falseLab)
-    {
-        codeGen();  //calculate the value on the stack
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, falseLab);
-        Codegen.generate("beq", Codegen.T0, Codegen.TRUE, trueLab);
-
+    @Override
+    public void genJumpCode(String trueLab, String falseLab) {
+        genCompare("bgt", "ble", trueLab, falseLab);
     }
 }
 
@@ -3074,13 +4131,9 @@ class LessEqNode extends RelationalExpNode {
 
     }
 
-    public void genJumpCode(String trueLab, String falseLab)
-    {
-        codeGen();  //calculate the value on the stack
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, falseLab);
-        Codegen.generate("beq", Codegen.T0, Codegen.TRUE, trueLab);
-
+    @Override
+    public void genJumpCode(String trueLab, String falseLab) {
+        genCompare("ble", "bgt", trueLab, falseLab);
     }
 }
 
@@ -3109,13 +4162,9 @@ class GreaterEqNode extends RelationalExpNode {
 
     }
 
-    public void genJumpCode(String trueLab, String falseLab)
-    {
-        codeGen();  //calculate the value on the stack
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, falseLab);
-        Codegen.generate("beq", Codegen.T0, Codegen.TRUE, trueLab);
-
+    @Override
+    public void genJumpCode(String trueLab, String falseLab) {
+        genCompare("bge", "blt", trueLab, falseLab);
     }
 }
 
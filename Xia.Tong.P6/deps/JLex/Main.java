@@ -5,6 +5,11 @@
   See below for copyright notice, license, and disclaimer.
   New releases from http://www.cs.princeton.edu/~appel/modern/java/JLex/
 
+  Local changes:
+   Added the %pack directive, which emits the transition table
+     compressed by default rows and row displacement, and the %switch
+     directive, which emits it as code (a switch on the state and the
+     character class) instead of as a table.
   Version 1.2.6, 2/7/03, [C. Scott Ananian]
    Renamed 'assert' function 'ASSERT' to accomodate Java 1.4's new keyword.
    Fixed a bug which certain forms of comment in the JLex directives section
@@ -291,6 +296,8 @@ class CSpec
   boolean m_unix;
   boolean m_public;
   boolean m_ignorecase;
+  boolean m_pack;	/* %pack: row-displacement transition tables */
+  boolean m_switch;	/* %switch: transitions coded as switches */
 
   char m_init_code[];
   int m_init_read;
@@ -373,6 +380,8 @@ class CSpec
         m_public = false;
 	m_yyeof = false;
 	m_ignorecase = false;
+	m_pack = false;
+	m_switch = false;
 
 	/* Initialize variables for JLex runtime options. */
 	m_verbose = true;
@@ -1221,6 +1230,17 @@ class CEmit
 	m_outstream.println(")[0];");
 	m_outstream.println();
 
+	if (m_spec.m_switch)
+	  {
+	    emit_switch();
+	    return;
+	  }
+	if (m_spec.m_pack)
+	  {
+	    emit_packed();
+	    return;
+	  }
+
 	// CSA: modified yy_rmap to use string packing 9-Aug-1999
 	m_outstream.print("\tprivate int yy_rmap[] = unpackFromString(");
 	emit_table_as_string(new int[][] { m_spec.m_row_map });
@@ -1244,6 +1264,199 @@ class CEmit
 	m_outstream.println();
       }
 
+  /***************************************************************
+    Function: emit_packed
+    Description: Emits the transition table compressed by
+    default rows and row displacement (%pack).
+    A row that is much like a row met earlier keeps only the
+    transitions in which it differs from that row, its
+    default (yy_def); the others are their own default.
+    The rows are then overlaid in one vector, yy_pnxt, each
+    at its own offset yy_base, so that no two rows use the
+    same element; yy_check records the row an element
+    belongs to.  A transition not found in the row of the
+    state is taken from its default row, and is YY_F if it
+    is not there either.  Rows with the most transitions
+    are taken first.
+    **************************************************************/
+  private void emit_packed
+    (
+     )
+      throws java.io.IOException
+      {
+	int nrows = m_spec.m_dtrans_vector.size();
+	int ncols = m_spec.m_dtrans_ncols;
+	int[][] rows = new int[nrows][];
+	Integer[] order = new Integer[nrows];
+	final int[] used = new int[nrows];
+	for (int r = 0; r < nrows; ++r)
+	  {
+	    rows[r] = ((CDTrans) m_spec.m_dtrans_vector.elementAt(r)).m_dtrans;
+	    order[r] = new Integer(r);
+	    for (int c = 0; c < ncols; ++c)
+	      if (CDTrans.F != rows[r][c]) used[r]++;
+	  }
+	java.util.Arrays.sort(order, new java.util.Comparator() {
+	    public int compare(Object a, Object b) {
+	      return used[((Integer) b).intValue()] - used[((Integer) a).intValue()];
+	    }
+	  });
+
+	/* Choose the default rows. */
+	int[] def = new int[nrows];
+	boolean[][] keep = new boolean[nrows][ncols];
+	Vector templates = new Vector();
+	for (int k = 0; k < nrows; ++k)
+	  {
+	    int r = order[k].intValue();
+	    int best = r;
+	    int cost = used[r];
+	    for (int j = 0; j < templates.size(); ++j)
+	      {
+		int t = ((Integer) templates.elementAt(j)).intValue();
+		int diff = 0;
+		for (int c = 0; c < ncols; ++c)
+		  if (rows[r][c] != rows[t][c]) diff++;
+		if (diff < cost)
+		  {
+		    best = t;
+		    cost = diff;
+		  }
+	      }
+	    def[r] = best;
+	    if (best == r)
+	      templates.addElement(new Integer(r));
+	    for (int c = 0; c < ncols; ++c)
+	      keep[r][c] = (best == r) ? CDTrans.F != rows[r][c]
+		                       : rows[r][c] != rows[best][c];
+	  }
+
+	/* Overlay the rows. */
+	int[] check = new int[nrows * ncols + ncols];
+	int[] next = new int[check.length];
+	java.util.Arrays.fill(check, -1);
+	int[] base = new int[nrows];
+	int size = 0;
+	for (int k = 0; k < nrows; ++k)
+	  {
+	    int r = order[k].intValue();
+	    int b = 0;
+	    for (;; ++b)
+	      {
+		int c;
+		for (c = 0; c < ncols; ++c)
+		  if (keep[r][c] && -1 != check[b + c]) break;
+		if (c == ncols) break;
+	      }
+	    base[r] = b;
+	    for (int c = 0; c < ncols; ++c)
+	      if (keep[r][c])
+		{
+		  check[b + c] = r;
+		  next[b + c] = rows[r][c];
+		}
+	    size = Math.max(size, b + ncols);
+	  }
+	int[] yy_check = new int[size];
+	int[] yy_pnxt = new int[size];
+	System.arraycopy(check, 0, yy_check, 0, size);
+	System.arraycopy(next, 0, yy_pnxt, 0, size);
+
+	m_outstream.println("\t/* " + (nrows * ncols)
+			    + " transitions packed into " + size + " */");
+	m_outstream.print("\tprivate int yy_rmap[] = unpackFromString(");
+	emit_table_as_string(new int[][] { m_spec.m_row_map });
+	m_outstream.println(")[0];");
+	m_outstream.println();
+	m_outstream.print("\tprivate int yy_base[] = unpackFromString(");
+	emit_table_as_string(new int[][] { base });
+	m_outstream.println(")[0];");
+	m_outstream.println();
+	m_outstream.print("\tprivate int yy_def[] = unpackFromString(");
+	emit_table_as_string(new int[][] { def });
+	m_outstream.println(")[0];");
+	m_outstream.println();
+	m_outstream.print("\tprivate int yy_check[] = unpackFromString(");
+	emit_table_as_string(new int[][] { yy_check });
+	m_outstream.println(")[0];");
+	m_outstream.println();
+	m_outstream.print("\tprivate int yy_pnxt[] = unpackFromString(");
+	emit_table_as_string(new int[][] { yy_pnxt });
+	m_outstream.println(")[0];");
+	m_outstream.println();
+      }
+
+  /***************************************************************
+    Function: emit_switch
+    Description: Emits the transition table as code (%switch):
+    a method yy_next(state, column) that switches on the state,
+    and then on the column for the transitions that differ
+    from the most frequent one of the row.  States with the
+    same row share its code.
+    **************************************************************/
+  private void emit_switch
+    (
+     )
+      throws java.io.IOException
+      {
+	int nrows = m_spec.m_dtrans_vector.size();
+	int ncols = m_spec.m_dtrans_ncols;
+
+	m_outstream.println("\tprivate int yy_next (int yy_state, int yy_column) {");
+	m_outstream.println("\t\tswitch (yy_state) {");
+	for (int r = 0; r < nrows; ++r)
+	  {
+	    int[] row = ((CDTrans) m_spec.m_dtrans_vector.elementAt(r)).m_dtrans;
+	    for (int i = 0; i < m_spec.m_row_map.length; ++i)
+	      if (r == m_spec.m_row_map[i])
+		m_outstream.println("\t\tcase " + i + ":");
+
+	    // the most frequent target is the default
+	    Hashtable count = new Hashtable();
+	    int deflt = CDTrans.F;
+	    int most = 0;
+	    for (int c = 0; c < ncols; ++c)
+	      {
+		Integer t = new Integer(row[c]);
+		Integer n = (Integer) count.get(t);
+		n = new Integer(null == n ? 1 : n.intValue() + 1);
+		count.put(t, n);
+		if (n.intValue() > most)
+		  {
+		    most = n.intValue();
+		    deflt = row[c];
+		  }
+	      }
+	    if (most == ncols)
+	      {
+		m_outstream.println("\t\t\treturn " + deflt + ";");
+		continue;
+	      }
+
+	    m_outstream.println("\t\t\tswitch (yy_column) {");
+	    boolean[] done = new boolean[ncols];
+	    for (int c = 0; c < ncols; ++c)
+	      {
+		if (done[c] || row[c] == deflt) continue;
+		m_outstream.print("\t\t\t");
+		for (int d = c; d < ncols; ++d)
+		  if (row[d] == row[c])
+		    {
+		      m_outstream.print("case " + d + ": ");
+		      done[d] = true;
+		    }
+		m_outstream.println("return " + row[c] + ";");
+	      }
+	    m_outstream.println("\t\t\tdefault: return " + deflt + ";");
+	    m_outstream.println("\t\t\t}");
+	  }
+	m_outstream.println("\t\tdefault:");
+	m_outstream.println("\t\t\treturn YY_F;");
+	m_outstream.println("\t\t}");
+	m_outstream.println("\t}");
+	m_outstream.println();
+      }
+
   /***************************************************************
     Function: emit_driver
     Description: Output an integer table as a string.  Written by
@@ -1394,6 +1607,11 @@ class CEmit
 	  m_outstream.println("\t\tint yy_last_accept_state = YY_NO_STATE;");
     	  m_outstream.println("\t\tboolean yy_initial = true;");
 	  m_outstream.println("\t\tint yy_this_accept;");
+	  if (m_spec.m_pack)
+	    {
+	      m_outstream.println("\t\tint yy_row;");
+	      m_outstream.println("\t\tint yy_index;");
+	    }
 	  m_outstream.println();
 
 	  m_outstream.println("\t\tyy_mark_start();");
@@ -1417,8 +1635,30 @@ class CEmit
 	  m_outstream.println("\t\t\tyy_next_state = YY_F;");
 	  /*m_outstream.println("\t\t\t\tyy_next_state = "
 				 + "yy_next(yy_state,yy_lookahead);");*/
-	  m_outstream.println("\t\t\tyy_next_state = "
- 	   + "yy_nxt[yy_rmap[yy_state]][yy_cmap[yy_lookahead]];");
+	  if (m_spec.m_switch)
+	    {
+	      m_outstream.println("\t\t\tyy_next_state = "
+				  + "yy_next(yy_state, yy_cmap[yy_lookahead]);");
+	    }
+	  else if (m_spec.m_pack)
+	    {
+	      m_outstream.println("\t\t\tyy_row = yy_rmap[yy_state];");
+	      m_outstream.println("\t\t\tyy_index = "
+				  + "yy_base[yy_row] + yy_cmap[yy_lookahead];");
+	      m_outstream.println("\t\t\tif (yy_check[yy_index] != yy_row) {");
+	      m_outstream.println("\t\t\t\tyy_row = yy_def[yy_row];");
+	      m_outstream.println("\t\t\t\tyy_index = "
+				  + "yy_base[yy_row] + yy_cmap[yy_lookahead];");
+	      m_outstream.println("\t\t\t}");
+	      m_outstream.println("\t\t\tif (yy_check[yy_index] == yy_row) {");
+	      m_outstream.println("\t\t\t\tyy_next_state = yy_pnxt[yy_index];");
+	      m_outstream.println("\t\t\t}");
+	    }
+	  else
+	    {
+	      m_outstream.println("\t\t\tyy_next_state = "
+		+ "yy_nxt[yy_rmap[yy_state]][yy_cmap[yy_lookahead]];");
+	    }
 
 	  if (NOT_EDBG)
 	    {
@@ -5409,6 +5649,17 @@ class CLexGen
     'b', 'l', 'i', 
     'c', '\0'
     };
+
+  private char m_pack_dir[] = { 
+    '%', 'p', 'a',
+    'c', 'k', '\0'
+    };
+
+  private char m_switch_dir[] = { 
+    '%', 's', 'w',
+    'i', 't', 'c',
+    'h', '\0'
+    };
   
   /***************************************************************
     Function: userDeclare
@@ -5741,6 +5992,18 @@ class CLexGen
 			  m_spec.m_public = true;
 			  break;
 			}
+		      else if (0 == CUtility.charncmp(m_input.m_line,
+						      0,
+						      m_pack_dir,
+						      0,
+						      m_pack_dir.length - 1))
+			{
+			  /* Pack the transition table. */
+			  m_input.m_line_index = m_pack_dir.length;
+			  m_spec.m_pack = true;
+			  m_spec.m_switch = false;
+			  break;
+			}
 
 		      /* Bad directive. */
 		      CError.parse_error(CError.E_DIRECT,
@@ -5759,6 +6022,18 @@ class CLexGen
 			  saveStates();
 			  break;
 			}
+		      else if (0 == CUtility.charncmp(m_input.m_line,
+						      0,
+						      m_switch_dir,
+						      0,
+						      m_switch_dir.length - 1))
+			{
+			  /* Code the transitions as switches. */
+			  m_input.m_line_index = m_switch_dir.length;
+			  m_spec.m_switch = true;
+			  m_spec.m_pack = false;
+			  break;
+			}
 
 		      /* Undefined directive. */
 		      CError.parse_error(CError.E_DIRECT,